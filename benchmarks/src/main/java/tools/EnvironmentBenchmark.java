@@ -0,0 +1,73 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building the command environment for one event. <code>legacy</code>
+ * is the implementation that walked the system properties and resolved the
+ * canonical directory on every event, <code>cached</code> is
+ * Factory.getEnvironmentVars with the canonical directory attached by the
+ * Registry. Run with <code>-prof gc</code> to see the allocation per event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvironmentBenchmark {
+
+    Factory factory;
+    Path dir;
+    Path file;
+    ChangeEvent event;
+
+    @Setup
+    public void setUp() throws IOException {
+        factory = new Factory();
+        dir = Files.createTempDirectory("envbench");
+        file = Files.createFile(dir.resolve("Changed.java"));
+        event = new ChangeEvent(ENTRY_MODIFY, file, dir.toFile().getCanonicalPath());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(file);
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public String[] legacy() throws IOException {
+        List<String> arr = new ArrayList<>();
+        arr.add("WATCHED_DIR=" + file.getParent().toFile().getCanonicalPath());
+        arr.add("WATCHED_FILE=" + file.getFileName().toString());
+        arr.add("WATCHED_EXTENSION=" + Factory.getExtension(file.toFile().getName()));
+        for (Entry e : System.getProperties().entrySet()) {
+            arr.add((String) e.getKey() + "=" + (String) e.getValue());
+        }
+        return arr.toArray(new String[]{});
+    }
+
+    @Benchmark
+    public String[] cached() throws IOException {
+        return factory.getEnvironmentVars(event);
+    }
+}
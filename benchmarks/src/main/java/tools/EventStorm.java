@@ -0,0 +1,360 @@
+package tools;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import tools.metrics.LatencyHistogram;
+
+/**
+ * Load generator: creates, modifies and deletes files at a fixed rate in a
+ * temporary tree watched by a real FileWatcher, and reports the lost events,
+ * the OVERFLOWs and the latency from the write of a file to the start of its
+ * command as JSON.
+ *
+ * The command is not started, the time is taken when FileWatcher hands the
+ * event to Factory.execute (or executeBatch); with --command the command is
+ * started after that. An operation on a file whose previous change has not
+ * reached the command yet is coalesced with it, the latency is measured from
+ * the first one. A file with a change that did not reach a command until the
+ * end of the drain time is lost.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar tools.EventStorm --rate 2000 --duration 30 \
+ *     --depth 3 --fanout 5 --files 20 --report storm.json -- --debounce 50ms
+ * </pre>
+ * The arguments after <code>--</code> are passed to FileWatcher.
+ */
+public class EventStorm {
+
+    private int rate = 1000;
+    private int durationSeconds = 10;
+    private int depth = 3;
+    private int fanout = 4;
+    private int filesPerDirectory = 10;
+    private int drainSeconds = 10;
+    private int deletePercent = 20;
+    private long seed = 42;
+    private String command;
+    private String report;
+    private boolean keep;
+    private final List<String> watcherArguments = new LinkedList<>();
+
+    private final List<Path> directories = new ArrayList<>();
+    // file -> time of its first change not seen by a command yet
+    private final ConcurrentMap<Path, Long> pending = new ConcurrentHashMap<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong commandEvents = new AtomicLong();
+    private final AtomicLong unmatchedEvents = new AtomicLong();
+    private long creates;
+    private long modifies;
+    private long deletes;
+    private long coalesced;
+    private long maxLagNanos;
+
+    public static void main(String[] args) throws Exception {
+        EventStorm storm = new EventStorm();
+        storm.parseArguments(new LinkedList<>(Arrays.asList(args)));
+        System.exit(storm.run() ? 0 : 1);
+    }
+
+    void parseArguments(LinkedList<String> args) {
+        while (!args.isEmpty()) {
+            String arg = args.removeFirst();
+            switch (arg) {
+                case "--rate":
+                    rate = Integer.parseInt(args.removeFirst());
+                    break;
+                case "--duration":
+                    durationSeconds = Integer.parseInt(args.removeFirst());
+                    break;
+                case "--depth":
+                    depth = Integer.parseInt(args.removeFirst());
+                    break;
+                case "--fanout":
+                    fanout = Integer.parseInt(args.removeFirst());
+                    break;
+                case "--files":
+                    filesPerDirectory = Integer.parseInt(args.removeFirst());
+                    break;
+                case "--drain":
+                    drainSeconds = Integer.parseInt(args.removeFirst());
+                    break;
+                case "--delete":
+                    deletePercent = Integer.parseInt(args.removeFirst());
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args.removeFirst());
+                    break;
+                case "--command":
+                    command = args.removeFirst();
+                    break;
+                case "--report":
+                    report = args.removeFirst();
+                    break;
+                case "--keep":
+                    keep = true;
+                    break;
+                case "--":
+                    watcherArguments.addAll(args);
+                    args.clear();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+    }
+
+    /**
+     * Runs the storm, returns false if events were lost.
+     */
+    boolean run() throws IOException, InterruptedException {
+        Path root = Files.createTempDirectory("eventstorm");
+        StormFactory factory = new StormFactory();
+        try {
+            createTree(root, depth);
+            FileWatcher watcher = new FileWatcher(factory);
+            List<String> args = new ArrayList<>();
+            args.add("-d");
+            args.add(root.toString());
+            args.add("-c");
+            args.add(command == null ? "true" : command);
+            args.addAll(watcherArguments);
+            watcher.setupByCommandLineArguments(args.toArray(new String[args.size()]));
+            factory.createDaemonThread(watcher, "watcher").start();
+            awaitRegistration(factory.registry);
+
+            long start = System.nanoTime();
+            generate();
+            long generated = System.nanoTime() - start;
+            long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainSeconds);
+            while (!pending.isEmpty() && System.nanoTime() < drainDeadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            String json = toJson(watcher.getMetrics(), generated);
+            if (report == null) {
+                System.out.println(json);
+            } else {
+                try (Writer out = new OutputStreamWriter(new FileOutputStream(report), StandardCharsets.UTF_8)) {
+                    out.write(json);
+                    out.write('\n');
+                }
+            }
+            return pending.isEmpty();
+        } finally {
+            if (!keep) {
+                // the watcher would log the deleted root
+                factory.silence();
+                delete(root);
+            }
+        }
+    }
+
+    private void createTree(Path dir, int levels) throws IOException {
+        directories.add(dir);
+        for (int i = 0; i < filesPerDirectory; i += 2) {
+            // half of the slots start with a file
+            Files.write(dir.resolve("f" + i), new byte[]{(byte) i});
+        }
+        if (levels > 0) {
+            for (int i = 0; i < fanout; i++) {
+                createTree(Files.createDirectory(dir.resolve("d" + i)), levels - 1);
+            }
+        }
+    }
+
+    private void awaitRegistration(Registry registry) throws InterruptedException {
+        while (registry.getRegisteredDirectories() < directories.size() || registry.isRegistering()) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    /**
+     * Runs the operations at the rate, catching up when it falls behind.
+     */
+    private void generate() throws IOException {
+        Random random = new Random(seed);
+        boolean[] exists = new boolean[directories.size() * filesPerDirectory];
+        for (int i = 0; i < exists.length; i++) {
+            exists[i] = i % filesPerDirectory % 2 == 0;
+        }
+        long total = (long) rate * durationSeconds;
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long next = System.nanoTime();
+        byte[] content = new byte[64];
+        for (long op = 0; op < total; op++) {
+            long now = System.nanoTime();
+            if (next > now) {
+                LockSupport.parkNanos(next - now);
+            } else {
+                maxLagNanos = Math.max(maxLagNanos, now - next);
+            }
+            next += interval;
+
+            int slot = random.nextInt(exists.length);
+            Path file = directories.get(slot / filesPerDirectory).resolve("f" + (slot % filesPerDirectory));
+            int choice = random.nextInt(100);
+            if (pending.putIfAbsent(file, System.nanoTime()) != null) {
+                coalesced++;
+            }
+            if (!exists[slot]) {
+                random.nextBytes(content);
+                Files.write(file, content);
+                exists[slot] = true;
+                creates++;
+            } else if (choice < deletePercent) {
+                Files.delete(file);
+                exists[slot] = false;
+                deletes++;
+            } else {
+                random.nextBytes(content);
+                Files.write(file, content);
+                modifies++;
+            }
+        }
+    }
+
+    /**
+     * The command of an event would start now.
+     */
+    void commandStarting(Path file) {
+        commandEvents.incrementAndGet();
+        Long written = pending.remove(file);
+        if (written == null) {
+            // the second event of a write (CREATE and MODIFY) or of the tree
+            unmatchedEvents.incrementAndGet();
+        } else {
+            latency.record(System.nanoTime() - written);
+        }
+    }
+
+    private String toJson(Metrics metrics, long generatedNanos) {
+        long operations = creates + modifies + deletes;
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"rate\": ").append(rate).append(",\n");
+        json.append("  \"durationSeconds\": ").append(durationSeconds).append(",\n");
+        json.append("  \"achievedRate\": ")
+                .append(String.format("%.1f", operations * 1e9 / Math.max(1, generatedNanos))).append(",\n");
+        json.append("  \"maxGeneratorLagMillis\": ")
+                .append(TimeUnit.NANOSECONDS.toMillis(maxLagNanos)).append(",\n");
+        json.append("  \"tree\": {\"depth\": ").append(depth)
+                .append(", \"fanout\": ").append(fanout)
+                .append(", \"filesPerDirectory\": ").append(filesPerDirectory)
+                .append(", \"directories\": ").append(directories.size()).append("},\n");
+        json.append("  \"watcherArguments\": \"").append(escape(watcherArguments.toString())).append("\",\n");
+        json.append("  \"operations\": {\"total\": ").append(operations)
+                .append(", \"create\": ").append(creates)
+                .append(", \"modify\": ").append(modifies)
+                .append(", \"delete\": ").append(deletes)
+                .append(", \"coalesced\": ").append(coalesced).append("},\n");
+        json.append("  \"events\": {\"create\": ").append(metrics.getEvents(0))
+                .append(", \"modify\": ").append(metrics.getEvents(1))
+                .append(", \"delete\": ").append(metrics.getEvents(2))
+                .append(", \"suppressed\": ").append(metrics.getSuppressedEvents())
+                .append(", \"recovered\": ").append(metrics.getRecoveredEvents())
+                .append(", \"commands\": ").append(commandEvents.get())
+                .append(", \"unmatched\": ").append(unmatchedEvents.get()).append("},\n");
+        json.append("  \"overflows\": ").append(metrics.getOverflows()).append(",\n");
+        json.append("  \"lost\": ").append(pending.size()).append(",\n");
+        json.append("  \"latencyMillis\": {\"count\": ").append(latency.getCount());
+        String[] names = {"p50", "p90", "p99", "p999", "max"};
+        double[] percentiles = {50, 90, 99, 99.9, 100};
+        for (int i = 0; i < names.length; i++) {
+            json.append(", \"").append(names[i]).append("\": ")
+                    .append(String.format("%.3f", latency.getPercentileMillis(percentiles[i])));
+        }
+        json.append("}\n");
+        json.append("}");
+        return json.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static void delete(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Takes the time of the command start instead of (or before) starting
+     * it, and keeps the event logging of FileWatcher off the console.
+     */
+    private class StormFactory extends Factory {
+
+        Registry registry;
+        private final List<Logger> loggers = new CopyOnWriteArrayList<>();
+
+        @Override
+        public Logger createLogger(Class<?> clazz) {
+            Logger logger = super.createLogger(clazz);
+            logger.setLevel(Level.WARNING);
+            loggers.add(logger);
+            return logger;
+        }
+
+        void silence() {
+            for (Logger logger : loggers) {
+                logger.setLevel(Level.OFF);
+            }
+        }
+
+        @Override
+        Registry createRegistry(WatchService watcher) {
+            registry = super.createRegistry(watcher);
+            return registry;
+        }
+
+        @Override
+        int execute(String cmd, Path root, ChangeEvent event) throws IOException {
+            commandStarting(event.getPath());
+            return command == null ? 0 : super.execute(cmd, root, event);
+        }
+
+        @Override
+        int executeBatch(String cmd, Path root, List<ChangeEvent> changes, boolean manifestOnStdin)
+                throws IOException {
+            for (ChangeEvent change : changes) {
+                commandStarting(change.getPath());
+            }
+            return command == null ? 0 : super.executeBatch(cmd, root, changes, manifestOnStdin);
+        }
+
+        @Override
+        void registerMBeans(Registry registry, Metrics metrics) {
+        }
+    }
+}
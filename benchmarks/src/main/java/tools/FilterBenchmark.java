@@ -0,0 +1,75 @@
+package tools;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchKey;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of deciding whether a path is filtered. <code>skipDirectory</code> is
+ * the Registry check during registration with --skipDirectories style
+ * names, <code>exclude</code> and <code>accept</code> are the per-event checks
+ * with names, extensions and path globs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+    Registry registry;
+    PathFilter filter;
+    Path[] paths;
+    int next;
+
+    @Setup
+    public void setUp() {
+        registry = new Registry(new Factory(), null, new HashMap<WatchKey, Path>());
+        registry.setSkipDirectories(new String[]{".git", ".svn", "target", "node_modules"});
+        Path root = Paths.get("/work/project");
+        filter = new PathFilter(root, Arrays.asList("src/**/*.java", "*.xml"),
+                Arrays.asList("target", ".git", "*.class", "*~", "**/generated/**"));
+        paths = new Path[]{
+            root.resolve("src/main/java/tools/FileWatcher.java"),
+            root.resolve("target/classes/tools/FileWatcher.class"),
+            root.resolve("pom.xml"),
+            root.resolve("src/main/generated/Parser.java"),
+            root.resolve("README.md~"),
+            root.resolve(".git")
+        };
+    }
+
+    private Path nextPath() {
+        next = (next + 1) % paths.length;
+        return paths[next];
+    }
+
+    @Benchmark
+    public boolean skipDirectory() {
+        return registry.skipDirectory(nextPath());
+    }
+
+    @Benchmark
+    public boolean exclude() {
+        return filter.isExcluded(nextPath());
+    }
+
+    @Benchmark
+    public boolean accept() {
+        return filter.accepts(nextPath());
+    }
+}
@@ -0,0 +1,169 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The watch loop from a signalled key to the command dispatcher: a fake key
+ * delivers a batch of MODIFY events to FileWatcher.handleEvents. The command
+ * is not started (Factory.execute only counts) and the loggers are set to
+ * WARNING, so this is the cost FileWatcher adds per event. <code>filtered</code> adds include and exclude
+ * rules, half of the events are excluded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(HandleEventsBenchmark.EVENTS)
+public class HandleEventsBenchmark {
+
+    static final int EVENTS = 100;
+
+    @Param({"false", "true"})
+    boolean filtered;
+
+    FileWatcher watcher;
+    WatchKey key;
+    Path dir;
+    final AtomicLong executed = new AtomicLong();
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("eventbench");
+        BenchmarkFactory factory = new BenchmarkFactory(executed);
+        watcher = new FileWatcher(factory);
+        List<String> args = new ArrayList<>();
+        args.add("-d");
+        args.add(dir.toString());
+        args.add("-c");
+        args.add("true");
+        args.add("--overflow");
+        args.add("ignore");
+        if (filtered) {
+            args.add("--include");
+            args.add("*.java");
+            args.add("--exclude");
+            args.add("*.class");
+        }
+        watcher.setupByCommandLineArguments(args.toArray(new String[args.size()]));
+
+        List<WatchEvent<?>> events = new ArrayList<>();
+        for (int i = 0; i < EVENTS; i++) {
+            events.add(new ModifyEvent(dir.getFileSystem().getPath("File" + i + (i % 2 == 0 ? ".java" : ".class"))));
+        }
+        key = new RegistrationBenchmark.FakeKey(dir, events);
+        factory.registry.setEngine(new SingleKeyEngine(key));
+        factory.registry.registerDirectory(dir, null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public long handleEvents() {
+        watcher.handleEvents(key);
+        return executed.get();
+    }
+
+    static class BenchmarkFactory extends Factory {
+
+        private final AtomicLong executed;
+        Registry registry;
+
+        BenchmarkFactory(AtomicLong executed) {
+            this.executed = executed;
+        }
+
+        @Override
+        public Logger createLogger(Class<?> clazz) {
+            Logger logger = super.createLogger(clazz);
+            logger.setLevel(Level.WARNING);
+            return logger;
+        }
+
+        @Override
+        Registry createRegistry(WatchService watcher) {
+            registry = super.createRegistry(watcher);
+            return registry;
+        }
+
+        @Override
+        int execute(String command, Path root, ChangeEvent event) {
+            executed.incrementAndGet();
+            return 0;
+        }
+
+        @Override
+        void registerMBeans(Registry registry, Metrics metrics) {
+        }
+    }
+
+    /**
+     * Returns the same key for every registration.
+     */
+    static class SingleKeyEngine extends RegistrationBenchmark.KeyEngine {
+
+        private final WatchKey key;
+
+        SingleKeyEngine(WatchKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public WatchKey register(Path dir) {
+            return key;
+        }
+    }
+
+    static class ModifyEvent implements WatchEvent<Path> {
+
+        private final Path context;
+
+        ModifyEvent(Path context) {
+            this.context = context;
+        }
+
+        @Override
+        public Kind<Path> kind() {
+            return ENTRY_MODIFY;
+        }
+
+        @Override
+        public int count() {
+            return 1;
+        }
+
+        @Override
+        public Path context() {
+            return context;
+        }
+    }
+}
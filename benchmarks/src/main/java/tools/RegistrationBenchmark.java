@@ -0,0 +1,180 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Registration of a synthetic tree (10 subdirectories per directory, one
+ * file per directory). The directories are registered with an engine that
+ * only hands out keys: the default inotify limit (8192 watches) is below the
+ * larger trees, and the kernel side is not what this measures. The walk,
+ * the key bookkeeping and, with snapshot, the TreeSnapshot (--overflow
+ * rescan, --state-file) of the Registry are real.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RegistrationBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int directories;
+
+    @Param({"1", "4"})
+    int parallelism;
+
+    @Param({"false", "true"})
+    boolean snapshot;
+
+    Path root;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("regbench");
+        createTree(root, directories - 1);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Benchmark
+    public Registry register() throws IOException {
+        Registry registry = new Registry(new Factory(), null, new ConcurrentHashMap<WatchKey, Path>());
+        registry.setEngine(new KeyEngine());
+        if (snapshot) {
+            registry.setSnapshot(new TreeSnapshot());
+        }
+        registry.setParallelism(parallelism);
+        if (!registry.registerWatchers(root)) {
+            throw new IllegalStateException("Registration failed");
+        }
+        if (registry.getRegisteredDirectories() != directories) {
+            throw new IllegalStateException(registry.getRegisteredDirectories() + " registered");
+        }
+        return registry;
+    }
+
+    /**
+     * Creates the given number of directories below dir, breadth first.
+     */
+    static void createTree(Path dir, int count) throws IOException {
+        ArrayDeque<Path> queue = new ArrayDeque<>();
+        queue.add(dir);
+        int created = 0;
+        while (created < count) {
+            Path parent = queue.remove();
+            Files.createFile(parent.resolve("file.txt"));
+            for (int i = 0; i < 10 && created < count; i++, created++) {
+                queue.add(Files.createDirectory(parent.resolve("d" + i)));
+            }
+        }
+    }
+
+    /**
+     * Hands out keys without events; the keys passed to signal are returned
+     * by take and poll, like the WatchService returns the signalled keys.
+     */
+    static class KeyEngine implements WatchEngine {
+
+        private final BlockingQueue<WatchKey> signalled = new LinkedBlockingQueue<>();
+
+        @Override
+        public WatchKey register(final Path dir) {
+            return new FakeKey(dir, Collections.<WatchEvent<?>>emptyList());
+        }
+
+        @Override
+        public WatchKey take() throws InterruptedException {
+            return signalled.take();
+        }
+
+        @Override
+        public WatchKey poll() {
+            return signalled.poll();
+        }
+
+        void signal(WatchKey key) {
+            signalled.add(key);
+        }
+    }
+
+    /**
+     * A key with a fixed list of events.
+     */
+    static class FakeKey implements WatchKey {
+
+        private final Path dir;
+        private final List<WatchEvent<?>> events;
+
+        FakeKey(Path dir, List<WatchEvent<?>> events) {
+            this.dir = dir;
+            this.events = events;
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+
+        @Override
+        public List<WatchEvent<?>> pollEvents() {
+            return events;
+        }
+
+        @Override
+        public boolean reset() {
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public Watchable watchable() {
+            return dir;
+        }
+    }
+}
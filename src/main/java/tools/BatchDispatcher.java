@@ -0,0 +1,117 @@
+package tools;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Last stage of the pipeline in batch mode: collects the events of a burst
+ * (one drain of the WatchService or one debounce window) and runs the handler
+ * (the command or a ChangeHandler) once with the list of the changed paths.
+ */
+class BatchDispatcher implements EventSink {
+
+    @SuppressWarnings("NonConstantLogger")
+    private final Logger logger;
+    private final Metrics metrics;
+    private final ChangeHandler handler;
+    private final Path root;
+    private final ExecutionPool pool;
+    private final LinkedHashMap<Path, ChangeEvent> events = new LinkedHashMap<>();
+
+    BatchDispatcher(Factory factory, Metrics metrics, ChangeHandler handler, Path root, ExecutionPool pool) {
+        logger = factory.createLogger(this.getClass());
+        this.metrics = metrics;
+        this.handler = handler;
+        this.root = root;
+        this.pool = pool;
+    }
+
+    @Override
+    public synchronized void accept(ChangeEvent event) {
+        ChangeEvent previous = events.get(event.getPath());
+        events.put(event.getPath(), previous == null ? event : Debouncer.merge(previous, event));
+    }
+
+    @Override
+    public void flush() {
+        List<ChangeEvent> batch;
+        synchronized (this) {
+            if (events.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>(events.values());
+            events.clear();
+        }
+        if (pool == null) {
+            execute(batch);
+        } else {
+            // one queued batch per dispatcher, serialised with the job: a
+            // batch flushed while the previous one waits is merged into it
+            pool.submit(this, root, new Batch(batch));
+        }
+    }
+
+    /**
+     * The latencies of a batch are measured from its oldest event.
+     */
+    void execute(List<ChangeEvent> batch) {
+        long oldest = batch.get(0).getNanoTime();
+        for (ChangeEvent event : batch) {
+            if (event.getNanoTime() - oldest < 0) {
+                oldest = event.getNanoTime();
+            }
+        }
+        boolean failed = true;
+        metrics.commandStarted(oldest);
+        try {
+            failed = !handler.handle(root, batch);
+        } catch (Exception ex) {
+            logger.log(Level.SEVERE, "Could not execute " + handler + " for a batch of " + batch.size(), ex);
+        } finally {
+            metrics.commandCompleted(oldest, failed);
+        }
+    }
+
+    synchronized int getPendingCount() {
+        return events.size();
+    }
+
+    ChangeHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * The run of a batch; a later batch is merged into it while it is
+     * queued, an event per path.
+     */
+    private class Batch implements ExecutionPool.Mergeable {
+
+        private final List<ChangeEvent> events;
+
+        Batch(List<ChangeEvent> events) {
+            this.events = events;
+        }
+
+        @Override
+        public void run() {
+            execute(events);
+        }
+
+        @Override
+        public Runnable merge(Runnable later) {
+            LinkedHashMap<Path, ChangeEvent> merged = new LinkedHashMap<>();
+            for (ChangeEvent event : events) {
+                merged.put(event.getPath(), event);
+            }
+            for (ChangeEvent event : ((Batch) later).events) {
+                ChangeEvent previous = merged.get(event.getPath());
+                merged.put(event.getPath(), previous == null ? event : Debouncer.merge(previous, event));
+            }
+            return new Batch(new ArrayList<>(merged.values()));
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package tools;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+
+/**
+ * A change reported by the watch loop: the kind of the event, the affected
+ * path and the time (System.nanoTime) the event was taken from the watcher.
+ * The canonical path of the parent directory is attached if the watch loop
+ * knows it, so the command environment does not have to resolve it again.
+ */
+public class ChangeEvent {
+
+    private final WatchEvent.Kind<?> kind;
+    private final Path path;
+    private final long nanoTime;
+    private final String directory;
+
+    ChangeEvent(WatchEvent.Kind<?> kind, Path path) {
+        this(kind, path, null, System.nanoTime());
+    }
+
+    ChangeEvent(WatchEvent.Kind<?> kind, Path path, String directory) {
+        this(kind, path, directory, System.nanoTime());
+    }
+
+    ChangeEvent(WatchEvent.Kind<?> kind, Path path, String directory, long nanoTime) {
+        this.kind = kind;
+        this.path = path;
+        this.directory = directory;
+        this.nanoTime = nanoTime;
+    }
+
+    public WatchEvent.Kind<?> getKind() {
+        return kind;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    ChangeEvent withKind(WatchEvent.Kind<?> newKind) {
+        return new ChangeEvent(newKind, path, directory, nanoTime);
+    }
+
+    @Override
+    public String toString() {
+        return kind.name() + ": " + path;
+    }
+}
@@ -0,0 +1,21 @@
+package tools;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Reacts to the changes inside the FileWatcher JVM instead of a command
+ * (--handler). A handler is found by its class name among the
+ * implementations listed in META-INF/services/tools.ChangeHandler on the
+ * classpath, or loaded by its class name; it needs a public no-argument
+ * constructor. Every job gets its own instance.
+ */
+public interface ChangeHandler {
+
+    /**
+     * Handles changes below the root: one change per call, or the changes of
+     * a burst with --batch. Called on the watch thread or, with
+     * --max-parallel, on the pool threads. Returns false if handling failed.
+     */
+    boolean handle(Path root, List<ChangeEvent> changes) throws Exception;
+}
@@ -0,0 +1,86 @@
+package tools;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Last stage of the pipeline: runs the handler (the command or a
+ * ChangeHandler) for every event it receives. Without an execution pool the
+ * handler runs on the calling thread.
+ */
+class CommandDispatcher implements EventSink {
+
+    @SuppressWarnings("NonConstantLogger")
+    private final Logger logger;
+    private final Metrics metrics;
+    private final ChangeHandler handler;
+    private final Path root;
+    private final ExecutionPool pool;
+
+    CommandDispatcher(Factory factory, Metrics metrics, ChangeHandler handler, Path root, ExecutionPool pool) {
+        logger = factory.createLogger(this.getClass());
+        this.metrics = metrics;
+        this.handler = handler;
+        this.root = root;
+        this.pool = pool;
+    }
+
+    @Override
+    public void accept(ChangeEvent event) {
+        if (pool == null) {
+            execute(event);
+        } else {
+            // queued per file, serialised by the single flight key
+            pool.submit(event.getPath(), pool.keyOf(event.getPath(), root), new Execution(event));
+        }
+    }
+
+    void execute(ChangeEvent event) {
+        boolean failed = true;
+        metrics.commandStarted(event.getNanoTime());
+        try {
+            failed = !handler.handle(root, Collections.singletonList(event));
+        } catch (Exception ex) {
+            logger.log(Level.SEVERE, "Could not execute " + handler + " for " + event.getPath(), ex);
+        } finally {
+            metrics.commandCompleted(event.getNanoTime(), failed);
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    ChangeHandler getHandler() {
+        return handler;
+    }
+
+    ExecutionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * The run of an event; a later event of the file is merged into it while
+     * it is queued.
+     */
+    private class Execution implements ExecutionPool.Mergeable {
+
+        private final ChangeEvent event;
+
+        Execution(ChangeEvent event) {
+            this.event = event;
+        }
+
+        @Override
+        public void run() {
+            execute(event);
+        }
+
+        @Override
+        public Runnable merge(Runnable later) {
+            return new Execution(Debouncer.merge(event, ((Execution) later).event));
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package tools;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The handler of the -c command: starts it for every change, or once for
+ * the changes of a burst in batch mode. It succeeds if the exit code is 0.
+ */
+class CommandHandler implements ChangeHandler {
+
+    private final Factory factory;
+    private final String command;
+    private final boolean batch;
+    private final boolean manifestOnStdin;
+
+    CommandHandler(Factory factory, String command, boolean batch, boolean manifestOnStdin) {
+        this.factory = factory;
+        this.command = command;
+        this.batch = batch;
+        this.manifestOnStdin = manifestOnStdin;
+    }
+
+    @Override
+    public boolean handle(Path root, List<ChangeEvent> changes) throws Exception {
+        int exitCode = batch
+                ? factory.executeBatch(command, root, changes, manifestOnStdin)
+                : factory.execute(command, root, changes.get(0));
+        return exitCode == 0;
+    }
+
+    String getCommand() {
+        return command;
+    }
+
+    @Override
+    public String toString() {
+        return command;
+    }
+}
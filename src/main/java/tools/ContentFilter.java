@@ -0,0 +1,154 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Drops MODIFY events of files whose content did not change (--content-aware).
+ * A fingerprint (size, mtime and a CRC32 of the content) is kept for the
+ * recently changed files in an LRU cache. An event with the same size and an
+ * mtime old enough not to hide a write is a no-op; otherwise the content is
+ * hashed through a reused buffer and compared. The first event of a file
+ * always passes, there is nothing to compare it with.
+ */
+class ContentFilter implements EventSink {
+
+    static final int DEFAULT_CAPACITY = 10000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // coarsest mtime resolution of the common file systems (FAT)
+    private static final long MTIME_GRANULARITY_MILLIS = 2000;
+
+    @SuppressWarnings("NonConstantLogger")
+    private final Logger logger;
+    private final EventSink downstream;
+    private final Metrics metrics;
+    private final Map<Path, Fingerprint> fingerprints;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    ContentFilter(Factory factory, EventSink downstream, Metrics metrics, int capacity) {
+        logger = factory.createLogger(this.getClass());
+        this.downstream = downstream;
+        this.metrics = metrics;
+        this.fingerprints = new FingerprintCache(capacity);
+    }
+
+    @Override
+    public void accept(ChangeEvent event) {
+        if (event.getKind() == ENTRY_DELETE) {
+            forget(event.getPath());
+        } else {
+            // a CREATE records the first fingerprint of the file
+            boolean changed = changed(event.getPath());
+            if (!changed && event.getKind() == ENTRY_MODIFY) {
+                metrics.eventUnchanged();
+                return;
+            }
+        }
+        downstream.accept(event);
+    }
+
+    @Override
+    public void flush() {
+        downstream.flush();
+    }
+
+    /**
+     * Updates the fingerprint of the file and tells whether it differs from
+     * the previous one. Directories and unreadable files count as changed.
+     */
+    synchronized boolean changed(Path file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            if (!attrs.isRegularFile()) {
+                return true;
+            }
+            long mtime = attrs.lastModifiedTime().toMillis();
+            Fingerprint previous = fingerprints.get(file);
+            metrics.contentChecked();
+            if (previous != null && previous.stable
+                    && previous.size == attrs.size() && previous.mtime == mtime) {
+                return false;
+            }
+            long hash = hash(file);
+            boolean stable = System.currentTimeMillis() - mtime > MTIME_GRANULARITY_MILLIS;
+            fingerprints.put(file, new Fingerprint(attrs.size(), mtime, hash, stable));
+            return previous == null || previous.size != attrs.size() || previous.hash != hash;
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Could not fingerprint " + file, ex);
+            fingerprints.remove(file);
+            return true;
+        }
+    }
+
+    synchronized void forget(Path file) {
+        fingerprints.remove(file);
+    }
+
+    synchronized int size() {
+        return fingerprints.size();
+    }
+
+    private long hash(Path file) throws IOException {
+        crc.reset();
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                crc.update(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * The fingerprints in access order, the least recently used one is
+     * dropped above the capacity.
+     */
+    private static final class FingerprintCache extends LinkedHashMap<Path, Fingerprint> {
+
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        FingerprintCache(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Fingerprint> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private static class Fingerprint {
+
+        final long size;
+        final long mtime;
+        final long hash;
+        // the mtime was older than its resolution when the file was hashed,
+        // a later write must change it
+        final boolean stable;
+
+        Fingerprint(long size, long mtime, long hash, boolean stable) {
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+            this.stable = stable;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package tools;
+
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces repeated events of the same path. An event is passed downstream
+ * once no other event arrived for its path during the quiet window, so a burst
+ * of changes on a file results in a single command execution. The pending
+ * events are kept in the order of their last change, settled events are
+ * delivered by a background thread.
+ */
+class Debouncer implements EventSink, Runnable {
+
+    @SuppressWarnings("NonConstantLogger")
+    private final Logger logger;
+    private final Factory factory;
+    private final EventSink downstream;
+    private final Metrics metrics;
+    private final long windowNanos;
+    private final LinkedHashMap<Path, Pending> pending = new LinkedHashMap<>();
+    private Thread thread;
+
+    Debouncer(Factory factory, EventSink downstream, Metrics metrics, long windowMillis) {
+        this.factory = factory;
+        logger = factory.createLogger(this.getClass());
+        this.downstream = downstream;
+        this.metrics = metrics;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    @Override
+    public void accept(ChangeEvent event) {
+        synchronized (this) {
+            accept(event, System.nanoTime());
+            if (thread == null) {
+                thread = factory.createDaemonThread(this, "debouncer");
+                thread.start();
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * The quiet window decides when a burst is over.
+     */
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                deliver(awaitSettled());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized void accept(ChangeEvent event, long now) {
+        Path path = event.getPath();
+        Pending p = pending.remove(path);
+        if (p == null) {
+            p = new Pending(event);
+        } else {
+            p.event = merge(p.event, event);
+            metrics.eventSuppressed();
+        }
+        p.lastSeen = now;
+        // re-insert, so the map stays ordered by the time of the last change
+        pending.put(path, p);
+    }
+
+    synchronized List<ChangeEvent> drainSettled(long now) {
+        List<ChangeEvent> settled = new ArrayList<>();
+        Iterator<Pending> it = pending.values().iterator();
+        while (it.hasNext()) {
+            Pending p = it.next();
+            if (now - p.lastSeen < windowNanos) {
+                break;
+            }
+            settled.add(p.event);
+            it.remove();
+        }
+        return settled;
+    }
+
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    private synchronized List<ChangeEvent> awaitSettled() throws InterruptedException {
+        while (true) {
+            if (pending.isEmpty()) {
+                wait();
+                continue;
+            }
+            long now = System.nanoTime();
+            long delay = pending.values().iterator().next().lastSeen + windowNanos - now;
+            if (delay <= 0) {
+                return drainSettled(now);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, delay);
+        }
+    }
+
+    @SuppressWarnings({"BroadCatchBlock", "TooBroadCatch"})
+    private void deliver(List<ChangeEvent> settled) {
+        try {
+            for (ChangeEvent event : settled) {
+                downstream.accept(event);
+            }
+            downstream.flush();
+        } catch (RuntimeException ex) {
+            logger.log(Level.SEVERE, "Could not deliver debounced events.", ex);
+        }
+    }
+
+    /**
+     * The first event of a burst decides whether the path was created or
+     * deleted, later modifications do not change that. A path deleted and
+     * created again within the window is reported as modified.
+     */
+    static ChangeEvent merge(ChangeEvent previous, ChangeEvent next) {
+        if (previous.getKind() == ENTRY_CREATE && next.getKind() == ENTRY_MODIFY) {
+            return previous;
+        }
+        if (previous.getKind() == ENTRY_DELETE && next.getKind() == ENTRY_CREATE) {
+            return next.withKind(ENTRY_MODIFY);
+        }
+        return next;
+    }
+
+    private static class Pending {
+
+        ChangeEvent event;
+        long lastSeen;
+
+        Pending(ChangeEvent event) {
+            this.event = event;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of the changes (--journal). The changes are fixed size
+ * records in memory mapped segment files:
+ * <pre>
+ * sequence (long) time (long, millis) path id (int) kind (int)
+ * </pre>
+ * A segment holds a fixed number of records and is named after its first
+ * sequence; the oldest segments are deleted beyond the retention. The paths
+ * are interned per segment: the .paths file next to a segment lists every
+ * path of its records once (int length and UTF-8 bytes), a record refers to
+ * its position in the list. A path file goes with its segment, so the
+ * writer keeps only the paths of the current segment. The sequence is
+ * written last, a record with sequence 0 is empty, so a crash leaves no torn
+ * records. The journal answers "what changed since sequence N" and "since
+ * time T", so a consumer that started late or crashed can catch up.
+ * <p>
+ * Only the writer (the watcher) opens the journal with {@link #open()} and
+ * repairs a torn path at its start. Readers of a live journal use
+ * {@link #openReadOnly()}: nothing is written, a path being appended is not
+ * read yet.
+ */
+class EventJournal {
+
+    static final int RECORD_SIZE = 24;
+    static final int DEFAULT_SEGMENT_RECORDS = 65536;
+    static final int DEFAULT_SEGMENTS = 8;
+    private static final String SEGMENT_PREFIX = "events-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String PATHS_SUFFIX = ".paths";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @SuppressWarnings("NonConstantLogger")
+    private final Logger logger;
+    private final Path dir;
+    private final int segmentRecords;
+    private final int maxSegments;
+    // the paths of the current segment
+    private final Map<String, Integer> pathIds = new HashMap<>();
+    private final List<String> paths = new ArrayList<>();
+    // first sequence -> segment file
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private FileChannel pathChannel;
+    private MappedByteBuffer segment;
+    private long segmentFirst;
+    private int segmentCount;
+    private long nextSequence = 1;
+    private boolean readOnly;
+
+    EventJournal(Factory factory, Path dir, int segmentRecords, int maxSegments) {
+        logger = factory.createLogger(this.getClass());
+        this.dir = dir;
+        this.segmentRecords = segmentRecords;
+        this.maxSegments = Math.max(1, maxSegments);
+    }
+
+    /**
+     * Opens the journal for writing: loads the segments and the paths of the
+     * newest one, the next record follows its last one.
+     */
+    synchronized void open() throws IOException {
+        Files.createDirectories(dir);
+        loadSegments();
+        if (segment != null) {
+            pathChannel = FileChannel.open(pathsOf(segments.lastEntry().getValue()), READ, WRITE, CREATE);
+            long valid = readPaths(pathChannel, paths);
+            for (int id = 0; id < paths.size(); id++) {
+                pathIds.put(paths.get(id), id);
+            }
+            // a path cut off by a crash of the writer
+            pathChannel.truncate(valid);
+            pathChannel.position(valid);
+        }
+    }
+
+    /**
+     * Opens the journal for reading only, e.g. while the watcher writes it:
+     * the files are opened and mapped read only and never truncated.
+     */
+    synchronized void openReadOnly() throws IOException {
+        readOnly = true;
+        if (!Files.isDirectory(dir)) {
+            throw new NoSuchFileException(dir.toString());
+        }
+        loadSegments();
+    }
+
+    private void loadSegments() throws IOException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : ds) {
+                String name = file.getFileName().toString();
+                segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length())), file);
+            }
+        }
+        if (!segments.isEmpty()) {
+            segmentFirst = segments.lastKey();
+            segment = map(segments.lastEntry().getValue());
+            int capacity = segment.capacity() / RECORD_SIZE;
+            while (segmentCount < capacity && segment.getLong(segmentCount * RECORD_SIZE) != 0) {
+                segmentCount++;
+            }
+            nextSequence = segmentFirst + segmentCount;
+        }
+    }
+
+    /**
+     * Appends a change and returns its sequence.
+     */
+    synchronized long append(WatchEvent.Kind<?> kind, Path path, long timeMillis) throws IOException {
+        if (readOnly) {
+            throw new IllegalStateException("The journal is open for reading : " + dir);
+        }
+        if (segment == null || segmentCount == segmentRecords) {
+            roll();
+        }
+        int offset = segmentCount * RECORD_SIZE;
+        segment.putLong(offset + 8, timeMillis);
+        segment.putInt(offset + 16, intern(path.toString()));
+        segment.putInt(offset + 20, code(kind));
+        long sequence = nextSequence++;
+        segment.putLong(offset, sequence);
+        segmentCount++;
+        return sequence;
+    }
+
+    /**
+     * The changes after the sequence, at most limit of them.
+     */
+    synchronized List<Entry> readSince(long sequence, int limit) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        Long first = segments.floorKey(sequence + 1);
+        for (Map.Entry<Long, Path> e : segments.tailMap(first == null ? 0L : first).entrySet()) {
+            ByteBuffer records = records(e.getKey(), e.getValue());
+            List<String> segmentPaths = null;
+            for (int offset = 0; offset + RECORD_SIZE <= records.limit() && entries.size() < limit;
+                    offset += RECORD_SIZE) {
+                long recordSequence = records.getLong(offset);
+                if (recordSequence == 0) {
+                    break;
+                }
+                if (recordSequence > sequence) {
+                    int pathId = records.getInt(offset + 16);
+                    if (segmentPaths == null || pathId >= segmentPaths.size()) {
+                        // read once per segment, again for a path appended since
+                        segmentPaths = paths(e.getKey(), e.getValue());
+                    }
+                    entries.add(new Entry(recordSequence, records.getLong(offset + 8),
+                            kind(records.getInt(offset + 20)),
+                            pathId < segmentPaths.size() ? segmentPaths.get(pathId) : null));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * The changes recorded at or after the time, at most limit of them.
+     */
+    synchronized List<Entry> readSinceTime(long timeMillis, int limit) throws IOException {
+        // the first segment that may hold the time: the last one starting before it
+        long start = segments.isEmpty() ? 0 : segments.firstKey();
+        for (Map.Entry<Long, Path> e : segments.entrySet()) {
+            ByteBuffer records = records(e.getKey(), e.getValue());
+            if (records.limit() >= RECORD_SIZE && records.getLong(0) != 0 && records.getLong(8) < timeMillis) {
+                start = e.getKey();
+            }
+        }
+        List<Entry> entries = readSince(start - 1, Integer.MAX_VALUE);
+        List<Entry> since = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.timeMillis >= timeMillis && since.size() < limit) {
+                since.add(entry);
+            }
+        }
+        return since;
+    }
+
+    /**
+     * The sequence of the last change, 0 if the journal is empty.
+     */
+    synchronized long getLastSequence() {
+        return nextSequence - 1;
+    }
+
+    /**
+     * Writes the current segment and its paths to the disk.
+     */
+    synchronized void force() {
+        try {
+            if (segment != null && !readOnly) {
+                segment.force();
+            }
+            if (pathChannel != null) {
+                pathChannel.force(false);
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not write the journal " + dir, ex);
+        }
+    }
+
+    synchronized void close() throws IOException {
+        force();
+        if (pathChannel != null) {
+            pathChannel.close();
+            pathChannel = null;
+        }
+        segment = null;
+    }
+
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Number of paths of the current segment.
+     */
+    int getPathCount() {
+        return paths.size();
+    }
+
+    private void roll() throws IOException {
+        if (segment != null) {
+            segment.force();
+        }
+        if (pathChannel != null) {
+            pathChannel.force(false);
+            pathChannel.close();
+        }
+        segmentFirst = nextSequence;
+        Path file = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segmentFirst, SEGMENT_SUFFIX));
+        segments.put(segmentFirst, file);
+        segment = map(file);
+        segmentCount = 0;
+        paths.clear();
+        pathIds.clear();
+        pathChannel = FileChannel.open(pathsOf(file), READ, WRITE, CREATE);
+        pathChannel.truncate(0);
+        while (segments.size() > maxSegments) {
+            Path oldest = segments.pollFirstEntry().getValue();
+            Files.deleteIfExists(oldest);
+            Files.deleteIfExists(pathsOf(oldest));
+        }
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        if (readOnly) {
+            try (FileChannel channel = FileChannel.open(file, READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE, CREATE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentRecords * RECORD_SIZE);
+        }
+    }
+
+    /**
+     * The records of a segment: the current one is read from the writer's
+     * mapping, the others are mapped read only.
+     */
+    private ByteBuffer records(long first, Path file) throws IOException {
+        if (first == segmentFirst && segment != null && !readOnly) {
+            ByteBuffer records = segment.duplicate();
+            records.limit(segmentCount * RECORD_SIZE);
+            return records;
+        }
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * The paths of a segment: the writer's list for the current one, the
+     * others are read from their file.
+     */
+    private List<String> paths(long first, Path file) throws IOException {
+        if (first == segmentFirst && !readOnly) {
+            return paths;
+        }
+        List<String> read = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(pathsOf(file), READ)) {
+            readPaths(channel, read);
+        } catch (NoSuchFileException ex) {
+            // deleted with its segment meanwhile
+        }
+        return read;
+    }
+
+    private static Path pathsOf(Path segmentFile) {
+        String name = segmentFile.getFileName().toString();
+        return segmentFile.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + PATHS_SUFFIX);
+    }
+
+    private int intern(String path) throws IOException {
+        Integer id = pathIds.get(path);
+        if (id == null) {
+            byte[] bytes = path.getBytes(UTF8);
+            ByteBuffer out = ByteBuffer.allocate(4 + bytes.length);
+            out.putInt(bytes.length).put(bytes).flip();
+            while (out.hasRemaining()) {
+                pathChannel.write(out);
+            }
+            id = paths.size();
+            paths.add(path);
+            pathIds.put(path, id);
+        }
+        return id;
+    }
+
+    /**
+     * Reads the complete paths of a path file and returns where they end; a
+     * path being written (or cut off by a crash) is left out.
+     */
+    private static long readPaths(FileChannel channel, List<String> read) throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return 0;
+        }
+        MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long valid = 0;
+        while (in.remaining() >= 4) {
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                break;
+            }
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            read.add(new String(bytes, UTF8));
+            valid += 4 + length;
+        }
+        return valid;
+    }
+
+    private static int code(WatchEvent.Kind<?> kind) {
+        return kind == ENTRY_CREATE ? 0 : kind == ENTRY_MODIFY ? 1 : 2;
+    }
+
+    private static WatchEvent.Kind<?> kind(int code) {
+        return code == 0 ? ENTRY_CREATE : code == 1 ? ENTRY_MODIFY : ENTRY_DELETE;
+    }
+
+    /**
+     * A change read from the journal.
+     */
+    static class Entry {
+
+        final long sequence;
+        final long timeMillis;
+        final WatchEvent.Kind<?> kind;
+        final String path;
+
+        Entry(long sequence, long timeMillis, WatchEvent.Kind<?> kind, String path) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.kind = kind;
+            this.path = path;
+        }
+
+        @Override
+        public String toString() {
+            return sequence + "\t" + timeMillis + "\t" + kind.name() + "\t" + path;
+        }
+    }
+}
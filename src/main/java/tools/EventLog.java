@@ -0,0 +1,174 @@
+package tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logging of the events and registrations at INFO, for the hot paths. The
+ * level is checked first, so with the default logging.properties
+ * (.level=SEVERE) a call costs a comparison: no String is formatted, no
+ * array is allocated. The message is a java.util.logging pattern
+ * ("{0}: {1}"), formatted by the handler only if it is logged.
+ * <p>
+ * With a ring (--log-buffer) the calls only store the pattern and the
+ * arguments in a preallocated slot, a background thread passes them to the
+ * logger. The watch loop then neither formats nor waits for the locks of
+ * the handlers. When the ring is full the record is dropped and counted.
+ */
+class EventLog {
+
+    private final Logger logger;
+    private final Ring ring;
+
+    EventLog(Logger logger) {
+        this(logger, null);
+    }
+
+    EventLog(Logger logger, Ring ring) {
+        this.logger = logger;
+        this.ring = ring;
+    }
+
+    /**
+     * The same sink for another logger.
+     */
+    EventLog forLogger(Logger other) {
+        return new EventLog(other, ring);
+    }
+
+    boolean isEnabled() {
+        return logger.isLoggable(Level.INFO);
+    }
+
+    void info(String pattern, Object first) {
+        info(pattern, first, null, null);
+    }
+
+    void info(String pattern, Object first, Object second) {
+        info(pattern, first, second, null);
+    }
+
+    void info(String pattern, Object first, Object second, Object third) {
+        if (!logger.isLoggable(Level.INFO)) {
+            return;
+        }
+        if (ring != null) {
+            ring.offer(logger, pattern, first, second, third);
+        } else {
+            logger.log(Level.INFO, pattern, new Object[]{first, second, third});
+        }
+    }
+
+    Ring getRing() {
+        return ring;
+    }
+
+    /**
+     * A bounded ring of log records with many producers and one consumer.
+     * A producer claims a slot by a compare-and-set of the tail and publishes
+     * it by its sequence; the consumer sleeps when the ring is empty and is
+     * woken by the next record.
+     */
+    static class Ring implements Runnable {
+
+        private final Metrics metrics;
+        private final Slot[] slots;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head;
+        private volatile Thread consumer;
+        private volatile boolean sleeping;
+
+        /**
+         * The capacity is rounded up to a power of two.
+         */
+        Ring(Metrics metrics, int capacity) {
+            this.metrics = metrics;
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            slots = new Slot[size];
+            for (int i = 0; i < size; i++) {
+                slots[i] = new Slot(i - size);
+            }
+            mask = size - 1;
+        }
+
+        void offer(Logger logger, String pattern, Object first, Object second, Object third) {
+            long sequence;
+            do {
+                sequence = tail.get();
+                if (sequence - head >= slots.length) {
+                    metrics.logRecordDropped();
+                    return;
+                }
+            } while (!tail.compareAndSet(sequence, sequence + 1));
+            Slot slot = slots[(int) sequence & mask];
+            slot.logger = logger;
+            slot.pattern = pattern;
+            slot.first = first;
+            slot.second = second;
+            slot.third = third;
+            slot.sequence = sequence;
+            if (sleeping) {
+                LockSupport.unpark(consumer);
+            }
+        }
+
+        @Override
+        public void run() {
+            consumer = Thread.currentThread();
+            while (!consumer.isInterrupted()) {
+                if (!drain()) {
+                    sleeping = true;
+                    // a record published before the flag was set is seen here
+                    if (!drain()) {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                }
+            }
+        }
+
+        /**
+         * Logs the published records, false if there were none.
+         */
+        boolean drain() {
+            boolean drained = false;
+            long next = head;
+            Slot slot = slots[(int) next & mask];
+            while (slot.sequence == next) {
+                Logger logger = slot.logger;
+                String pattern = slot.pattern;
+                Object[] parameters = {slot.first, slot.second, slot.third};
+                slot.logger = null;
+                slot.first = null;
+                slot.second = null;
+                slot.third = null;
+                head = ++next;
+                logger.log(Level.INFO, pattern, parameters);
+                drained = true;
+                slot = slots[(int) next & mask];
+            }
+            return drained;
+        }
+
+        int getCapacity() {
+            return slots.length;
+        }
+    }
+
+    private static class Slot {
+
+        private volatile long sequence;
+        private Logger logger;
+        private String pattern;
+        private Object first;
+        private Object second;
+        private Object third;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
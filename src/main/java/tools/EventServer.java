@@ -0,0 +1,496 @@
+package tools;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams the changes to subscribers on localhost (--serve), so several
+ * consumers share one watcher. A subscriber connects with
+ * <pre>
+ * GET /events?include=*.java&amp;exclude=target&amp;buffer=1000&amp;policy=disconnect
+ * </pre>
+ * and gets Server-Sent Events, or WebSocket text frames if it asks for an
+ * upgrade. Every change is a JSON object:
+ * <code>{"kind":"ENTRY_MODIFY","path":"/src/A.java"}</code>.
+ * <p>
+ * One selector thread serves all connections without blocking. A subscriber
+ * has its own filter and a bounded buffer: when the buffer is full the oldest
+ * change is dropped (policy=drop-oldest, the default) or the subscriber is
+ * disconnected (policy=disconnect). A slow subscriber never blocks the watch
+ * loop.
+ */
+class EventServer implements Runnable {
+
+    static final int DEFAULT_BUFFER = 1024;
+    private static final int MAX_REQUEST = 8192;
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final char[] BASE64
+            = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    @SuppressWarnings("NonConstantLogger")
+    private final Logger logger;
+    private final Factory factory;
+    private final Metrics metrics;
+    private final int defaultBuffer;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    // subscribers with new data (or to close), handled by the selector thread
+    private final Queue<Subscriber> pending = new ConcurrentLinkedQueue<>();
+
+    EventServer(Factory factory, Metrics metrics, int port, int defaultBuffer) throws IOException {
+        this.factory = factory;
+        logger = factory.createLogger(this.getClass());
+        this.metrics = metrics;
+        this.defaultBuffer = defaultBuffer;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    void start() {
+        logger.info("Serving the changes on http://localhost:" + getPort() + "/events");
+        factory.createDaemonThread(this, "event-server").start();
+    }
+
+    /**
+     * Queues the change for the subscribers accepting it. The frames are
+     * encoded once and shared by the subscribers.
+     */
+    void publish(ChangeEvent change) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        String json = null;
+        ByteBuffer sse = null;
+        ByteBuffer frame = null;
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.filter.accepts(change.getPath())) {
+                continue;
+            }
+            if (json == null) {
+                json = toJson(change);
+            }
+            ByteBuffer encoded;
+            if (subscriber.websocket) {
+                encoded = frame == null ? frame = frame(0x81, json.getBytes(StandardCharsets.UTF_8)) : frame;
+            } else {
+                encoded = sse == null ? sse = ByteBuffer.wrap(
+                        ("data: " + json + "\n\n").getBytes(StandardCharsets.UTF_8)) : sse;
+            }
+            if (subscriber.offer(encoded.duplicate())) {
+                pending.add(subscriber);
+                selector.wakeup();
+            }
+        }
+    }
+
+    List<Subscriber> getSubscribers() {
+        return subscribers;
+    }
+
+    void close() throws IOException {
+        selector.close();
+        server.close();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                Subscriber subscriber;
+                while ((subscriber = pending.poll()) != null) {
+                    if (subscriber.closed) {
+                        close(subscriber);
+                    } else if (subscriber.key.isValid()) {
+                        subscriber.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            }
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Event server stopped", ex);
+        } catch (ClosedSelectorException ex) {
+            // closed
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+        Subscriber subscriber = (Subscriber) key.attachment();
+        try {
+            if (key.isReadable()) {
+                read(subscriber);
+            }
+            if (key.isValid() && key.isWritable()) {
+                write(subscriber);
+            }
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Subscriber gone", ex);
+            close(subscriber);
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = server.accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                Subscriber subscriber = new Subscriber(channel);
+                subscriber.key = channel.register(selector, SelectionKey.OP_READ, subscriber);
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not accept a subscriber", ex);
+        }
+    }
+
+    private void read(Subscriber subscriber) throws IOException {
+        if (subscriber.channel.read(subscriber.in) < 0) {
+            close(subscriber);
+            return;
+        }
+        if (!subscriber.subscribed) {
+            String request = request(subscriber.in);
+            if (request != null) {
+                subscribe(subscriber, request);
+            } else if (!subscriber.in.hasRemaining()) {
+                respond(subscriber, "431 Request Header Fields Too Large");
+            }
+        } else if (subscriber.websocket) {
+            readFrames(subscriber);
+        } else {
+            // nothing is expected from an event stream subscriber
+            subscriber.in.clear();
+        }
+    }
+
+    /**
+     * The request head once it is complete, null before.
+     */
+    private static String request(ByteBuffer in) {
+        String received = new String(in.array(), 0, in.position(), StandardCharsets.ISO_8859_1);
+        int end = received.indexOf("\r\n\r\n");
+        if (end < 0) {
+            return null;
+        }
+        in.clear();
+        return received.substring(0, end);
+    }
+
+    private void subscribe(Subscriber subscriber, String request) throws IOException {
+        String[] lines = request.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length < 2 || !"GET".equals(requestLine[0])) {
+            respond(subscriber, "405 Method Not Allowed");
+            return;
+        }
+        String target = requestLine[1];
+        int query = target.indexOf('?');
+        if (!"/events".equals(query < 0 ? target : target.substring(0, query))) {
+            respond(subscriber, "404 Not Found");
+            return;
+        }
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                        lines[i].substring(colon + 1).trim());
+            }
+        }
+        List<String> includes = new ArrayList<>();
+        List<String> excludes = new ArrayList<>();
+        int capacity = defaultBuffer;
+        boolean disconnect = false;
+        try {
+            for (String parameter : query < 0 ? new String[0] : target.substring(query + 1).split("&")) {
+                int eq = parameter.indexOf('=');
+                String name = eq < 0 ? parameter : parameter.substring(0, eq);
+                String value = eq < 0 ? "" : URLDecoder.decode(parameter.substring(eq + 1), "UTF-8");
+                switch (name) {
+                    case "include":
+                        includes.add(value);
+                        break;
+                    case "exclude":
+                        excludes.add(value);
+                        break;
+                    case "buffer":
+                        capacity = Integer.parseInt(value);
+                        break;
+                    case "policy":
+                        disconnect = parsePolicy(value);
+                        break;
+                    default:
+                }
+            }
+        } catch (IllegalArgumentException | UnsupportedEncodingException ex) {
+            respond(subscriber, "400 Bad Request");
+            return;
+        }
+        String key = headers.get("sec-websocket-key");
+        subscriber.websocket = "websocket".equalsIgnoreCase(headers.get("upgrade")) && key != null;
+        String response = subscriber.websocket
+                ? "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept(key) + "\r\n\r\n"
+                : "HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\nCache-Control: no-cache\r\n"
+                + "Connection: keep-alive\r\n\r\n";
+        subscriber.filter = new PathFilter(null, includes, excludes);
+        subscriber.capacity = Math.max(1, capacity);
+        subscriber.disconnect = disconnect;
+        subscriber.subscribed = true;
+        subscriber.send(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+        subscribers.add(subscriber);
+        metrics.subscriberAdded();
+        subscriber.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        logger.info("Subscriber " + subscriber.channel.getRemoteAddress() + " : " + target);
+    }
+
+    private void respond(Subscriber subscriber, String status) {
+        subscriber.closing = true;
+        subscriber.send(ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1)));
+        subscriber.key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Handles the frames of a WebSocket subscriber: a ping is answered, a
+     * close closes the connection, the others are ignored.
+     */
+    private void readFrames(Subscriber subscriber) throws IOException {
+        ByteBuffer in = subscriber.in;
+        in.flip();
+        while (in.remaining() >= 2) {
+            in.mark();
+            int opcode = in.get() & 0x0F;
+            int second = in.get() & 0xFF;
+            long length = second & 0x7F;
+            if (length == 126 && in.remaining() >= 2) {
+                length = in.getShort() & 0xFFFF;
+            } else if (length == 127 && in.remaining() >= 8) {
+                length = in.getLong();
+            } else if (length >= 126) {
+                in.reset();
+                break;
+            }
+            int maskLength = (second & 0x80) != 0 ? 4 : 0;
+            if (length > MAX_REQUEST - 14) {
+                close(subscriber);
+                return;
+            }
+            if (in.remaining() < maskLength + length) {
+                in.reset();
+                break;
+            }
+            byte[] mask = new byte[maskLength];
+            in.get(mask);
+            byte[] payload = new byte[(int) length];
+            in.get(payload);
+            for (int i = 0; i < payload.length && maskLength > 0; i++) {
+                payload[i] ^= mask[i % 4];
+            }
+            if (opcode == 0x8) {
+                subscriber.closing = true;
+                subscriber.send(frame(0x88, payload));
+            } else if (opcode == 0x9) {
+                subscriber.send(frame(0x8A, payload));
+            }
+            subscriber.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        in.compact();
+    }
+
+    private void write(Subscriber subscriber) throws IOException {
+        synchronized (subscriber) {
+            ByteBuffer buffer;
+            while ((buffer = subscriber.queue.peek()) != null) {
+                subscriber.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // the socket is full, wait for OP_WRITE
+                    return;
+                }
+                subscriber.queue.poll();
+            }
+        }
+        if (subscriber.closing) {
+            close(subscriber);
+        } else {
+            subscriber.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void close(Subscriber subscriber) {
+        if (subscribers.remove(subscriber)) {
+            metrics.subscriberRemoved();
+        }
+        subscriber.closed = true;
+        subscriber.key.cancel();
+        try {
+            subscriber.channel.close();
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Could not close a subscriber", ex);
+        }
+    }
+
+    static boolean parsePolicy(String value) {
+        switch (value) {
+            case "drop-oldest":
+                return false;
+            case "disconnect":
+                return true;
+            default:
+                throw new IllegalArgumentException("Invalid policy : " + value);
+        }
+    }
+
+    static String toJson(ChangeEvent change) {
+        StringBuilder json = new StringBuilder(64);
+        json.append("{\"kind\":");
+        WorkerHandler.quote(json, change.getKind().name());
+        json.append(",\"path\":");
+        WorkerHandler.quote(json, change.getPath().toString());
+        return json.append('}').toString();
+    }
+
+    /**
+     * A WebSocket frame from the server (not masked).
+     */
+    static ByteBuffer frame(int first, byte[] payload) {
+        int header = payload.length < 126 ? 2 : payload.length < 65536 ? 4 : 10;
+        ByteBuffer frame = ByteBuffer.allocate(header + payload.length);
+        frame.put((byte) first);
+        if (payload.length < 126) {
+            frame.put((byte) payload.length);
+        } else if (payload.length < 65536) {
+            frame.put((byte) 126).putShort((short) payload.length);
+        } else {
+            frame.put((byte) 127).putLong(payload.length);
+        }
+        frame.put(payload).flip();
+        return frame;
+    }
+
+    /**
+     * The Sec-WebSocket-Accept of a key: base64 of the SHA-1 of the key and
+     * the protocol GUID.
+     */
+    static String accept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    static String base64(byte[] data) {
+        StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xFF) << 16
+                    | (i + 1 < data.length ? (data[i + 1] & 0xFF) << 8 : 0)
+                    | (i + 2 < data.length ? data[i + 2] & 0xFF : 0);
+            out.append(BASE64[b >> 18 & 0x3F]).append(BASE64[b >> 12 & 0x3F]);
+            out.append(i + 1 < data.length ? BASE64[b >> 6 & 0x3F] : '=');
+            out.append(i + 2 < data.length ? BASE64[b & 0x3F] : '=');
+        }
+        return out.toString();
+    }
+
+    /**
+     * A connection: the request until it is complete, then a subscriber with
+     * its filter and its buffer of encoded changes.
+     */
+    class Subscriber {
+
+        private final SocketChannel channel;
+        private final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST);
+        private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+        private SelectionKey key;
+        private volatile boolean subscribed;
+        private volatile boolean websocket;
+        private volatile PathFilter filter;
+        private int capacity;
+        private boolean disconnect;
+        private volatile boolean closing;
+        private volatile boolean closed;
+
+        Subscriber(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Queues a change, true if the selector has to be told: the queue
+         * was empty, or the subscriber is disconnected as too slow.
+         */
+        synchronized boolean offer(ByteBuffer encoded) {
+            if (closed || closing) {
+                return false;
+            }
+            if (queue.size() >= capacity) {
+                if (disconnect) {
+                    closed = true;
+                    metrics.slowSubscriber();
+                    logger.warning("Disconnecting a slow subscriber");
+                    return true;
+                }
+                // the head may be partly written, the next one is dropped then
+                ByteBuffer head = queue.poll();
+                if (head.position() > 0) {
+                    queue.poll();
+                    queue.addFirst(head);
+                }
+                metrics.streamEventDropped();
+            }
+            queue.add(encoded);
+            return queue.size() == 1;
+        }
+
+        private synchronized void send(ByteBuffer buffer) {
+            queue.add(buffer);
+        }
+
+        int getQueued() {
+            synchronized (this) {
+                return queue.size();
+            }
+        }
+    }
+}
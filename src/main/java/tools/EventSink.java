@@ -0,0 +1,13 @@
+package tools;
+
+/**
+ * A stage of the event pipeline between the watch loop and the command.
+ * <code>flush</code> marks the end of a burst: the watch loop calls it after
+ * it has drained the WatchService.
+ */
+interface EventSink {
+
+    void accept(ChangeEvent event);
+
+    void flush();
+}
@@ -0,0 +1,292 @@
+package tools;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the commands on a fixed number of worker threads, so the watch loop
+ * never waits for a child process. The queue between the watch loop and the
+ * workers is bounded; the backpressure policy decides what happens when it is
+ * full. Every task has a key (the changed path), which is used to coalesce
+ * queued tasks of the same path.
+ *
+ * The tasks of a flight key (the file, its directory or the job, see
+ * {@link SingleFlight}) never run concurrently (single flight): while a task
+ * of the flight key runs, the workers pass over the queued ones. A new task
+ * is folded into the queued task of its key, a {@link Mergeable} task takes
+ * over the work of the new one. A file saved repeatedly during a long run
+ * gets exactly one follow-up run with its merged events, and the other files
+ * of the directory or job keep their own runs.
+ */
+class ExecutionPool implements Runnable {
+
+    enum Backpressure {
+
+        /**
+         * The watch loop waits until a worker takes a task.
+         */
+        BLOCK,
+        /**
+         * The oldest queued task is dropped.
+         */
+        DROP_OLDEST,
+        /**
+         * A task replaces the queued task of the same key, if there is none
+         * the watch loop waits like with BLOCK.
+         */
+        COALESCE;
+
+        static Backpressure parse(String value) {
+            return valueOf(value.toUpperCase().replace('-', '_'));
+        }
+    }
+
+    /**
+     * What the tasks that must not run concurrently share.
+     */
+    enum SingleFlight {
+
+        /**
+         * The changed file.
+         */
+        FILE,
+        /**
+         * The directory of the changed file.
+         */
+        DIRECTORY,
+        /**
+         * The root of the job, the command of a job runs once at a time.
+         */
+        JOB,
+        /**
+         * Tasks run concurrently, queued tasks are coalesced by file.
+         */
+        OFF;
+
+        static SingleFlight parse(String value) {
+            return valueOf(value.toUpperCase());
+        }
+    }
+
+    /**
+     * A task that absorbs a later task of its key while it is queued,
+     * instead of being replaced by it.
+     */
+    interface Mergeable extends Runnable {
+
+        /**
+         * The task doing the work of this one and of the later one.
+         */
+        Runnable merge(Runnable later);
+    }
+
+    @SuppressWarnings("NonConstantLogger")
+    private final Logger logger;
+    private final Factory factory;
+    private final Metrics metrics;
+    private final int maxParallel;
+    private final int capacity;
+    private final Backpressure backpressure;
+    private final SingleFlight singleFlight;
+    private final ArrayDeque<Task> queue = new ArrayDeque<>();
+    private final Map<Object, Task> queuedByKey = new HashMap<>();
+    private final Set<Object> running = new HashSet<>();
+    private boolean started;
+
+    ExecutionPool(Factory factory, Metrics metrics, int maxParallel, int capacity, Backpressure backpressure) {
+        this(factory, metrics, maxParallel, capacity, backpressure, SingleFlight.FILE);
+    }
+
+    ExecutionPool(Factory factory, Metrics metrics, int maxParallel, int capacity, Backpressure backpressure,
+            SingleFlight singleFlight) {
+        if (maxParallel < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Pool size and queue size must be positive!");
+        }
+        this.factory = factory;
+        logger = factory.createLogger(this.getClass());
+        this.metrics = metrics;
+        this.maxParallel = maxParallel;
+        this.capacity = capacity;
+        this.backpressure = backpressure;
+        this.singleFlight = singleFlight;
+    }
+
+    /**
+     * The flight key of the task of a changed file of the job with the given
+     * root.
+     */
+    Object keyOf(Path file, Path root) {
+        switch (singleFlight) {
+            case DIRECTORY:
+                Path parent = file.getParent();
+                return parent == null ? file : parent;
+            case JOB:
+                return root;
+            default:
+                return file;
+        }
+    }
+
+    /**
+     * Queues the task, the key is also its flight key.
+     */
+    synchronized boolean submit(Object key, Runnable runnable) {
+        return submit(key, key, runnable);
+    }
+
+    /**
+     * Queues the task. Returns false if the task (or an other one) had to be
+     * dropped or the caller was interrupted while waiting for free space.
+     */
+    synchronized boolean submit(Object key, Object flight, Runnable runnable) {
+        startWorkers();
+        if (backpressure == Backpressure.COALESCE || singleFlight != SingleFlight.OFF) {
+            Task queued = queuedByKey.get(key);
+            if (queued != null) {
+                queued.runnable = queued.runnable instanceof Mergeable
+                        ? ((Mergeable) queued.runnable).merge(runnable) : runnable;
+                metrics.taskCoalesced();
+                return true;
+            }
+        }
+        boolean complete = true;
+        while (queue.size() >= capacity) {
+            if (backpressure == Backpressure.DROP_OLDEST) {
+                dequeue();
+                metrics.taskDropped();
+                complete = false;
+            } else {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    metrics.taskDropped();
+                    return false;
+                }
+            }
+        }
+        Task task = new Task(key, flight, runnable);
+        queue.add(task);
+        queuedByKey.put(key, task);
+        metrics.setQueueDepth(queue.size());
+        notifyAll();
+        return complete;
+    }
+
+    @Override
+    @SuppressWarnings({"BroadCatchBlock", "TooBroadCatch"})
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Task task = take();
+                try {
+                    task.runnable.run();
+                } catch (RuntimeException ex) {
+                    logger.log(Level.SEVERE, "Task failed for " + task.key, ex);
+                } finally {
+                    finished(task);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * Removes the next task without waiting, null if the queue is empty.
+     */
+    synchronized Runnable poll() {
+        Task task = queue.isEmpty() ? null : dequeue();
+        return task == null ? null : task.runnable;
+    }
+
+    /**
+     * Takes the oldest task whose flight key is not running.
+     */
+    private synchronized Task take() throws InterruptedException {
+        while (true) {
+            Iterator<Task> tasks = queue.iterator();
+            while (tasks.hasNext()) {
+                Task task = tasks.next();
+                if (!running.contains(task.flight)) {
+                    tasks.remove();
+                    removed(task);
+                    if (singleFlight != SingleFlight.OFF) {
+                        running.add(task.flight);
+                    }
+                    return task;
+                }
+            }
+            wait();
+        }
+    }
+
+    private synchronized void finished(Task task) {
+        if (running.remove(task.flight)) {
+            notifyAll();
+        }
+    }
+
+    private Task dequeue() {
+        Task task = queue.remove();
+        removed(task);
+        return task;
+    }
+
+    private void removed(Task task) {
+        if (queuedByKey.get(task.key) == task) {
+            queuedByKey.remove(task.key);
+        }
+        metrics.setQueueDepth(queue.size());
+        notifyAll();
+    }
+
+    private void startWorkers() {
+        if (!started) {
+            started = true;
+            for (int i = 0; i < maxParallel; i++) {
+                factory.createDaemonThread(this, "command-" + i).start();
+            }
+        }
+    }
+
+    int getMaxParallel() {
+        return maxParallel;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    private static class Task {
+
+        final Object key;
+        final Object flight;
+        Runnable runnable;
+
+        Task(Object key, Object flight, Runnable runnable) {
+            this.key = key;
+            this.flight = flight;
+            this.runnable = runnable;
+        }
+    }
+}
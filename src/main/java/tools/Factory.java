@@ -1,8 +1,8 @@
 package tools;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitor;
@@ -13,14 +13,23 @@ import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.ServiceLoader;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 import tools.jmx.JmxMonitorRegistry;
 
 public class Factory {
 
+    private volatile Map<String, String> staticEnvironment;
+    private volatile String[] staticEnvironmentArray;
+    private OutputPump outputPump;
+
     Factory() {
     }
 
@@ -28,6 +37,16 @@ public class Factory {
         return new Thread(runnable);
     }
 
+    Thread createDaemonThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    void addShutdownHook(Runnable runnable) {
+        Runtime.getRuntime().addShutdownHook(new Thread(runnable, "shutdown"));
+    }
+
     FileSystem getFileSystem() {
         return FileSystems.getDefault();
     }
@@ -37,7 +56,7 @@ public class Factory {
     }
 
     Registry createRegistry(WatchService watcher) {
-        return new Registry(this, watcher, new HashMap<WatchKey, Path>());
+        return new Registry(this, watcher, new ConcurrentHashMap<WatchKey, Path>());
     }
 
     void walkFileTree(Path rootAll, FileVisitor visitor) throws IOException {
@@ -53,45 +72,189 @@ public class Factory {
         return Files.isDirectory(child, NOFOLLOW_LINKS);
     }
 
-    private String getExtension(Path path) {
-        String extension = "";
-        String pathStr = path.toFile().getName();
-        int index = pathStr.lastIndexOf(".");
-        if (index > -1 && index < pathStr.length() - 1) {
-            extension = pathStr.substring(index + 1);
-        } else {
-            extension += pathStr;
+    static String getExtension(String fileName) {
+        int index = fileName.lastIndexOf('.');
+        if (index > -1 && index < fileName.length() - 1) {
+            return fileName.substring(index + 1);
         }
-        return extension;
+        return fileName;
     }
 
-    private List<String> getEnvironmentVars(Path changedFile) throws IOException {
-        List<String> arr = new ArrayList<>();
+    /**
+     * The part of the environment that is the same for every command: the
+     * system properties. It is built on the first use.
+     */
+    Map<String, String> getStaticEnvironment() {
+        if (staticEnvironment == null) {
+            Map<String, String> env = new LinkedHashMap<>();
+            for (Entry e : System.getProperties().entrySet()) {
+                env.put((String) e.getKey(), (String) e.getValue());
+            }
+            staticEnvironment = Collections.unmodifiableMap(env);
+        }
+        return staticEnvironment;
+    }
 
-        arr.add("WATCHED_DIR=" + changedFile.getParent().toFile().getCanonicalPath());
-        arr.add("WATCHED_FILE=" + changedFile.getFileName().toString());
-        arr.add("WATCHED_EXTENSION=" + getExtension(changedFile));
-        for (Entry e : System.getProperties().entrySet()) {
-            arr.add((String) e.getKey() + "=" + (String) e.getValue());
+    private String[] getStaticEnvironmentArray() {
+        if (staticEnvironmentArray == null) {
+            Map<String, String> env = getStaticEnvironment();
+            String[] arr = new String[env.size()];
+            int i = 0;
+            for (Entry<String, String> e : env.entrySet()) {
+                arr[i++] = e.getKey() + "=" + e.getValue();
+            }
+            staticEnvironmentArray = arr;
         }
+        return staticEnvironmentArray;
+    }
+
+    /**
+     * Only the three variables of the changed file are built per event, the
+     * system properties are copied from the cached array. The canonical path
+     * of the directory comes with the event (the Registry caches it per
+     * WatchKey), it is resolved here only if it is missing.
+     */
+    String[] getEnvironmentVars(ChangeEvent event) throws IOException {
+        Path changedFile = event.getPath();
+        String directory = event.getDirectory();
+        if (directory == null) {
+            directory = changedFile.getParent().toFile().getCanonicalPath();
+        }
+        String fileName = changedFile.getFileName().toString();
+        String[] base = getStaticEnvironmentArray();
+        String[] arr = new String[base.length + 3];
+        arr[0] = "WATCHED_DIR=" + directory;
+        arr[1] = "WATCHED_FILE=" + fileName;
+        arr[2] = "WATCHED_EXTENSION=" + getExtension(fileName);
+        System.arraycopy(base, 0, arr, 3, base.length);
         return arr;
     }
 
-    void execute(String command, Path watchRootDirectory, Path changedFile) throws IOException {
+    /**
+     * Finds the handler by its class name (or simple name) among the
+     * ChangeHandler services on the classpath, else loads the class.
+     */
+    ChangeHandler createHandler(String name) {
+        for (ChangeHandler handler : ServiceLoader.load(ChangeHandler.class)) {
+            Class<?> clazz = handler.getClass();
+            if (clazz.getName().equals(name) || clazz.getSimpleName().equals(name)) {
+                return handler;
+            }
+        }
+        try {
+            return Class.forName(name).asSubclass(ChangeHandler.class).newInstance();
+        } catch (ReflectiveOperationException | ClassCastException ex) {
+            throw new IllegalArgumentException("Unknown handler : " + name, ex);
+        }
+    }
+
+    /**
+     * Runs the command for the event and returns its exit code.
+     */
+    int execute(String command, Path watchRootDirectory, ChangeEvent event) throws IOException {
         Process pr = Runtime.getRuntime().exec(command,
-                getEnvironmentVars(changedFile).toArray(new String[]{}),
+                getEnvironmentVars(event),
                 watchRootDirectory.toFile());
-        BufferedReader in = new BufferedReader(new InputStreamReader(pr.getInputStream()));
-        String line = null;
-        while ((line = in.readLine()) != null) {
-            System.out.println(line);
+        return awaitProcess(pr, event.getPath().toString());
+    }
+
+    /**
+     * Runs the command once for a list of changes. The changes are written to
+     * a manifest file, one "KIND&lt;tab&gt;path" line per change. The manifest
+     * is passed on stdin or, if manifestOnStdin is false, only through the
+     * $WATCHED_MANIFEST variable. Returns the exit code of the command.
+     */
+    int executeBatch(String command, Path watchRootDirectory, List<ChangeEvent> changes,
+            boolean manifestOnStdin) throws IOException {
+        Path manifest = Files.createTempFile("filewatcher", ".manifest");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8)) {
+                for (ChangeEvent change : changes) {
+                    out.write(change.getKind().name());
+                    out.write('\t');
+                    out.write(change.getPath().toAbsolutePath().toString());
+                    out.newLine();
+                }
+            }
+            ProcessBuilder pb = new ProcessBuilder(tokenize(command));
+            pb.directory(watchRootDirectory.toFile());
+            Map<String, String> env = pb.environment();
+            env.clear();
+            env.put("WATCHED_DIR", watchRootDirectory.toFile().getCanonicalPath());
+            env.put("WATCHED_MANIFEST", manifest.toAbsolutePath().toString());
+            env.put("WATCHED_COUNT", Integer.toString(changes.size()));
+            env.putAll(getStaticEnvironment());
+            if (manifestOnStdin) {
+                pb.redirectInput(manifest.toFile());
+            }
+            Process pr = pb.start();
+            return awaitProcess(pr, "batch of " + changes.size());
+        } finally {
+            Files.deleteIfExists(manifest);
+        }
+    }
+
+    /**
+     * Starts the command as a worker (--worker) in the root directory. It
+     * gets the static environment and $WATCHED_DIR, the changes come on its
+     * stdin.
+     */
+    Process startWorker(String command, Path watchRootDirectory) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(tokenize(command));
+        pb.directory(watchRootDirectory.toFile());
+        Map<String, String> env = pb.environment();
+        env.clear();
+        env.put("WATCHED_DIR", watchRootDirectory.toFile().getCanonicalPath());
+        env.putAll(getStaticEnvironment());
+        return pb.start();
+    }
+
+    /**
+     * Hands stdout and stderr of the process to the output pump and waits
+     * for the process to exit. Returns the exit code, -1 if interrupted.
+     */
+    int awaitProcess(Process pr, String label) throws IOException {
+        pr.getOutputStream().close();
+        OutputPump.Drain drain = getOutputPump().drain(pr, label);
+        try {
+            int exitCode = pr.waitFor();
+            drain.finish(exitCode);
+            return exitCode;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    synchronized OutputPump getOutputPump() {
+        if (outputPump == null) {
+            outputPump = new OutputPump(this, new Metrics(), new StreamOutput(System.out),
+                    false, OutputPump.DEFAULT_CAPACITY);
+        }
+        return outputPump;
+    }
+
+    synchronized void setOutputPump(OutputPump outputPump) {
+        this.outputPump = outputPump;
+    }
+
+    /**
+     * Splits the command the same way as Runtime.exec(String) does.
+     */
+    static List<String> tokenize(String command) {
+        List<String> tokens = new ArrayList<>();
+        StringTokenizer st = new StringTokenizer(command);
+        while (st.hasMoreTokens()) {
+            tokens.add(st.nextToken());
         }
+        return tokens;
     }
 
     private JmxMonitorRegistry jmx;
 
-    void registerMBeans(Registry registry) {
-        jmx = new JmxMonitorRegistry(this, registry);
+    void registerMBeans(Registry registry, Metrics metrics) {
+        jmx = new JmxMonitorRegistry(this, registry, metrics);
         jmx.register();
+        createDaemonThread(jmx, "jmx-rates").start();
     }
 }
@@ -1,52 +1,114 @@
 package tools;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.nio.file.FileSystem;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import static java.nio.file.StandardWatchEventKinds.*;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class FileWatcher implements Runnable {
 
-    private Path root;
-    private String commandToExecute;
-    private String[] skipDirectories;
+    private final List<WatchJob> jobs = new ArrayList<>();
+    // file key -> old path of the directories deleted in the current burst
+    private final Map<Object, Path> movedAway = new HashMap<>();
+    private int maxParallel;
+    private int queueSize = 1024;
+    private ExecutionPool.Backpressure backpressure = ExecutionPool.Backpressure.BLOCK;
+    private ExecutionPool.SingleFlight singleFlight = ExecutionPool.SingleFlight.FILE;
+    private boolean rescanOnOverflow;
+    private int registrationParallelism;
+    private String stateFileName;
+    private StateFile stateFile;
+    private String output = "stdout";
+    private boolean outputPrefix;
+    private int outputBuffer = OutputPump.DEFAULT_CAPACITY;
+    private String journalDirName;
+    private EventJournal journal;
+    private long replaySince = -1;
+    private long replaySinceTime = -1;
+    private int servePort = -1;
+    private int serveBuffer = EventServer.DEFAULT_BUFFER;
+    private EventServer server;
 
     @SuppressWarnings("NonConstantLogger")
     private final Logger logger;
+    private EventLog eventLog;
+    private int logBuffer;
     private final WatchService watcher;
+    private WatchEngine engine;
+    private boolean polling;
+    private long pollIntervalMillis = 500;
+    private long pollMaxIntervalMillis = 10000;
+    private int lazyDepth = -1;
+    private int watchBudget;
+    private long coldAfterMillis = 600000;
 
     private final Factory factory;
     private final FileSystem fileSystem;
     private final Registry registry;
+    private final Metrics metrics;
 
     FileWatcher(Factory factory) throws IOException {
         this.factory = factory;
         logger = factory.createLogger(this.getClass());
+        eventLog = new EventLog(logger);
         fileSystem = factory.getFileSystem();
         watcher = fileSystem.newWatchService();
         registry = factory.createRegistry(watcher);
-        factory.registerMBeans(registry);
+        engine = new NativeWatchEngine(watcher);
+        metrics = new Metrics();
+        factory.registerMBeans(registry, metrics);
+        jobs.add(new WatchJob());
     }
 
     @Override
     @SuppressWarnings({"BroadCatchBlock", "TooBroadCatch"})
     public void run() {
-        if (registry.registerWatchers(root)) {
+        TreeSnapshot previous = stateFile == null ? null : stateFile.load();
+        boolean registered = false;
+        for (WatchJob job : jobs) {
+            registered |= registry.registerWatchers(job.getRoot());
+        }
+        if (registered) {
+            if (eventLog.getRing() != null) {
+                factory.createDaemonThread(eventLog.getRing(), "event-log").start();
+            }
+            if (server != null) {
+                server.start();
+            }
+            if (stateFile != null) {
+                catchUp(previous);
+            }
+            replay();
             try {
                 while (true) {
-                    WatchKey key = watcher.take();
+                    WatchKey key = engine.take();
 
-                    if (registry.checkHasADirectory(key)) {
-                        handleEvents(key);
-                        cleanUp(key);
-                    }
+                    // drain every key that is already signalled, then flush
+                    // the pipeline: that is the end of a burst
+                    do {
+                        if (registry.checkHasADirectory(key)) {
+                            handleEvents(key);
+                            cleanUp(key);
+                        }
+                        key = engine.poll();
+                    } while (key != null);
+                    flush();
                 }
             } catch (Exception ex) {
                 logger.log(Level.SEVERE, "Exiting watch loop.", ex);
@@ -56,11 +118,14 @@ public class FileWatcher implements Runnable {
 
     void handleEvents(WatchKey key) {
         Path dir = registry.get(key);
+        List<WatchJob> owners = getJobs(registry.getJobs(key));
+        String canonicalDir = hasSink(owners) ? registry.getCanonicalPath(key) : null;
         for (WatchEvent<?> event : key.pollEvents()) {
             WatchEvent.Kind kind = event.kind();
 
-            // TBD - provide example of how OVERFLOW event is handled
+            // events were lost, compare the directory with the snapshot
             if (kind == OVERFLOW) {
+                recover(key);
                 continue;
             }
 
@@ -69,63 +134,608 @@ public class FileWatcher implements Runnable {
             Path name = ev.context();
             Path child = dir.resolve(name);
 
-            logger.info(String.format("%s: %s\n", event.kind().name(), child));
-            if (commandToExecute != null) {
-                try {
-                    factory.execute(commandToExecute, root, child);
-                } catch (IOException ex) {
-                    logger.log(Level.SEVERE, "Could not execute command : "
-                            + commandToExecute, ex);
-                }
+            // entries excluded by every job are dropped before anything else,
+            // such a directory is not registered
+            if (isExcluded(owners, child)) {
+                metrics.eventFiltered();
+                continue;
+            }
+
+            eventLog.info("{0}: {1}", kind, child);
+            metrics.eventReceived(kind);
+            record(kind, child);
+            if (kind == ENTRY_DELETE) {
+                forgetDirectory(child);
+            }
+            registry.refresh(kind, child);
+            if (!dispatch(owners, new ChangeEvent(kind, child, canonicalDir))) {
+                metrics.eventFiltered();
             }
 
             // if directory is created, and watching recursively, then
             // register it and its sub-directories
             if (kind == ENTRY_CREATE) {
                 if (factory.isDirectory(child)) {
+                    Path from = movedFrom(child);
+                    if (from != null) {
+                        metrics.directoryMoved();
+                        eventLog.info("MOVED: {0} -> {1}", from, child);
+                    }
                     registry.registerWatchers(child);
                 }
             }
         }
     }
 
+    /**
+     * A deleted (or moved away) directory: the keys of its subtree are
+     * cancelled at once instead of failing one by one on reset. Its file key
+     * is kept until the end of the burst to recognize a move.
+     */
+    private void forgetDirectory(Path child) {
+        if (registry.getKey(child) == null) {
+            return;
+        }
+        TreeSnapshot snapshot = registry.getSnapshot();
+        TreeSnapshot.Entry entry = snapshot == null ? null : snapshot.get(child);
+        if (entry != null && entry.fileKey != null) {
+            movedAway.put(entry.fileKey, child);
+        }
+        metrics.keysCancelled(registry.cancelSubtree(child));
+    }
+
+    /**
+     * The old path of a created directory if it is a directory deleted in
+     * the same burst (same file key), that is a rename or move.
+     */
+    private Path movedFrom(Path child) {
+        if (movedAway.isEmpty()) {
+            return null;
+        }
+        TreeSnapshot snapshot = registry.getSnapshot();
+        TreeSnapshot.Entry entry = snapshot == null ? null : snapshot.get(child);
+        return entry == null || entry.fileKey == null ? null : movedAway.remove(entry.fileKey);
+    }
+
+    /**
+     * Dispatches the changes the Registry found by rescanning the directory
+     * of an overflowed key. New directories are registered by the rescan.
+     */
+    void recover(WatchKey key) {
+        metrics.overflow();
+        List<WatchJob> owners = getJobs(registry.getJobs(key));
+        for (ChangeEvent change : registry.rescan(key)) {
+            if (!accepts(owners, change.getPath())) {
+                continue;
+            }
+            metrics.eventRecovered();
+            eventLog.info("{0} (recovered): {1}", change.getKind(), change.getPath());
+            record(change.getKind(), change.getPath());
+            dispatch(owners, change);
+        }
+    }
+
+    /**
+     * Flushes the pipelines of the jobs at the end of a burst.
+     */
+    void flush() {
+        movedAway.clear();
+        for (WatchJob job : jobs) {
+            if (job.getSink() != null) {
+                job.getSink().flush();
+            }
+        }
+    }
+
+    /**
+     * The jobs of a key or path; keys registered outside every root belong
+     * to the first job.
+     */
+    private List<WatchJob> getJobs(List<WatchJob> owners) {
+        return owners.isEmpty() ? jobs.subList(0, 1) : owners;
+    }
+
+    private static boolean hasSink(List<WatchJob> owners) {
+        for (WatchJob job : owners) {
+            if (job.getSink() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isExcluded(List<WatchJob> owners, Path path) {
+        for (WatchJob job : owners) {
+            if (!job.isExcluded(path)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean accepts(List<WatchJob> owners, Path path) {
+        for (WatchJob job : owners) {
+            if (job.accepts(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Passes the change to every job accepting it, each through its own
+     * filter. False if a job with a pipeline filtered it out and no job took
+     * it.
+     */
+    private static boolean dispatch(List<WatchJob> owners, ChangeEvent change) {
+        boolean dispatched = false;
+        boolean filtered = false;
+        for (WatchJob job : owners) {
+            if (job.getSink() == null) {
+                continue;
+            }
+            if (job.accepts(change.getPath())) {
+                job.getSink().accept(change);
+                dispatched = true;
+            } else {
+                filtered = true;
+            }
+        }
+        return dispatched || !filtered;
+    }
+
+    /**
+     * Reports the changes made while FileWatcher was not running: the tree
+     * as registered now is compared with the snapshot of the state file.
+     * Then the state file is saved periodically and at exit.
+     */
+    void catchUp(TreeSnapshot previous) {
+        if (previous != null) {
+            for (ChangeEvent change : registry.getSnapshot().diff(previous)) {
+                List<WatchJob> owners = getJobs(registry.getJobs(change.getPath()));
+                if (!accepts(owners, change.getPath())) {
+                    continue;
+                }
+                metrics.eventRecovered();
+                eventLog.info("{0} (offline): {1}", change.getKind(), change.getPath());
+                record(change.getKind(), change.getPath());
+                dispatch(owners, change);
+            }
+            flush();
+        }
+        stateFile.save();
+        factory.createDaemonThread(stateFile, "state-writer").start();
+        factory.addShutdownHook(new Runnable() {
+            @Override
+            public void run() {
+                stateFile.save();
+            }
+        });
+    }
+
+    /**
+     * Dispatches the changes of the journal since --replay-since or
+     * --replay-since-time, e.g. to a command that was down for a while.
+     */
+    void replay() {
+        if (journal == null || (replaySince < 0 && replaySinceTime < 0)) {
+            return;
+        }
+        try {
+            List<EventJournal.Entry> entries = replaySince >= 0
+                    ? journal.readSince(replaySince, Integer.MAX_VALUE)
+                    : journal.readSinceTime(replaySinceTime, Integer.MAX_VALUE);
+            for (EventJournal.Entry entry : entries) {
+                Path path = fileSystem.getPath(entry.path);
+                List<WatchJob> owners = getJobs(registry.getJobs(path));
+                if (!accepts(owners, path)) {
+                    continue;
+                }
+                eventLog.info("{0} (replayed {1,number,#}): {2}", entry.kind, entry.sequence, path);
+                dispatch(owners, new ChangeEvent(entry.kind, path));
+            }
+            flush();
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not replay the journal", ex);
+        }
+    }
+
+    /**
+     * Appends a change to the journal and streams it to the subscribers.
+     */
+    private void record(WatchEvent.Kind<?> kind, Path path) {
+        if (journal != null) {
+            try {
+                journal.append(kind, path, System.currentTimeMillis());
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Could not journal " + path, ex);
+            }
+        }
+        if (server != null) {
+            server.publish(new ChangeEvent(kind, path));
+        }
+    }
+
     void cleanUp(WatchKey key) {
         // reset key and remove from set if directory no longer accessible
         if (!key.reset()) {
             registry.remove(key);
-            if (registry.getKeys().isEmpty()) {
+            if (registry.getKeys().isEmpty() && !registerRoots()) {
                 throw new IllegalStateException("All directories are inaccessible");
             }
         }
     }
 
+    /**
+     * Registers the roots that exist (again), e.g. after a checkout replaced
+     * the watched directory. False if none could be registered.
+     */
+    private boolean registerRoots() {
+        boolean registered = false;
+        for (WatchJob job : jobs) {
+            if (job.getRoot() != null && factory.isDirectory(job.getRoot())) {
+                registered |= registry.registerWatchers(job.getRoot());
+            }
+        }
+        return registered;
+    }
+
+    /**
+     * Parses the arguments. Repeated -d/-c pairs (or the lines of a --config
+     * file) define several jobs: a -d or -c for a job that already has one
+     * starts the next job. The job options apply to the current job, the
+     * others to the whole FileWatcher.
+     */
     void setupByCommandLineArguments(String[] args) {
-        String pathToWatch = ".";
+        jobs.clear();
+        jobs.add(new WatchJob());
         if (args != null) {
             if (args.length == 1) {
-                pathToWatch = args[0];
+                jobs.get(0).setPathToWatch(args[0]);
             } else {
-                LinkedList<String> largs = new LinkedList(Arrays.asList(args));
-                while (!largs.isEmpty()) {
-                    switch (largs.remove()) {
-                        case "-d":
-                            pathToWatch = largs.remove();
-                            break;
-                        case "-c":
-                            commandToExecute = largs.remove();
-                            logger.info("Command to execute : " + commandToExecute);
-                            break;
-                        case "--skipDirectories":
-                            skipDirectories = largs.remove().split(",");
-                            logger.info("Skip Directories : " + skipDirectories);
-                            break;
-                        default:
-                            throw new IllegalArgumentException("Invalid switch!");
-                    }
+                parseArguments(new LinkedList<>(Arrays.asList(args)));
+            }
+        }
+        TieredWatchEngine tiered = null;
+        if (polling) {
+            engine = new PollingWatchEngine(factory, pollIntervalMillis, pollMaxIntervalMillis);
+            registry.setEngine(engine);
+        } else if (lazyDepth >= 0) {
+            tiered = new TieredWatchEngine(factory, metrics, new NativeWatchEngine(watcher),
+                    new PollingWatchEngine(factory, pollIntervalMillis, pollMaxIntervalMillis, true),
+                    lazyDepth, watchBudget, coldAfterMillis);
+            engine = tiered;
+            registry.setEngine(engine);
+        }
+        if (logBuffer > 0) {
+            eventLog = new EventLog(logger, new EventLog.Ring(metrics, logBuffer));
+        }
+        registry.setEventLog(eventLog.forLogger(registry.getLogger()));
+        TreeSnapshot snapshot = rescanOnOverflow || stateFileName != null ? new TreeSnapshot() : null;
+        registry.setSnapshot(snapshot);
+        registry.setParallelism(registrationParallelism);
+        factory.setOutputPump(createOutputPump());
+        ExecutionPool pool = null;
+        if (maxParallel > 0) {
+            pool = new ExecutionPool(factory, metrics, maxParallel, queueSize, backpressure, singleFlight);
+        }
+        StringBuilder roots = new StringBuilder();
+        for (WatchJob job : jobs) {
+            String pathToWatch = job.getPathToWatch() == null ? "." : job.getPathToWatch();
+            job.setup(factory, metrics, fileSystem.getPath(pathToWatch), pool);
+            if (tiered != null) {
+                tiered.addRoot(job.getRoot());
+            }
+            roots.append(roots.length() == 0 ? "" : File.pathSeparator).append(pathToWatch);
+        }
+        registry.setJobs(jobs);
+        stateFile = stateFileName == null ? null
+                : new StateFile(factory, fileSystem.getPath(stateFileName), roots.toString(), snapshot);
+        if (servePort >= 0) {
+            server = createServer();
+        }
+        if (journalDirName != null) {
+            journal = openJournal(factory, fileSystem.getPath(journalDirName), false);
+            factory.addShutdownHook(new Runnable() {
+                @Override
+                public void run() {
+                    journal.force();
                 }
+            });
+        }
+    }
+
+    EventServer createServer() {
+        try {
+            return new EventServer(factory, metrics, servePort, serveBuffer);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Could not listen on port " + servePort, ex);
+        }
+    }
+
+    /**
+     * Opens the journal for the watcher, or read only for a query of a
+     * journal that may be written meanwhile.
+     */
+    static EventJournal openJournal(Factory factory, Path dir, boolean readOnly) {
+        EventJournal opened = new EventJournal(factory, dir,
+                EventJournal.DEFAULT_SEGMENT_RECORDS, EventJournal.DEFAULT_SEGMENTS);
+        try {
+            if (readOnly) {
+                opened.openReadOnly();
+            } else {
+                opened.open();
+            }
+            return opened;
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Could not open the journal : " + dir, ex);
+        }
+    }
+
+    private void parseArguments(LinkedList<String> largs) {
+        WatchJob job = jobs.get(jobs.size() - 1);
+        while (!largs.isEmpty()) {
+            switch (largs.remove()) {
+                case "-d":
+                    job = nextJob(job.getPathToWatch() != null);
+                    job.setPathToWatch(largs.remove());
+                    break;
+                case "-c":
+                    job = nextJob(job.hasHandler());
+                    job.setCommandToExecute(largs.remove());
+                    logger.info("Command to execute : " + job.getCommandToExecute());
+                    break;
+                case "--worker":
+                    job.setWorker(true);
+                    break;
+                case "--worker-timeout":
+                    job.setWorkerTimeoutMillis(parseMillis(largs.remove()));
+                    break;
+                case "--handler":
+                    job = nextJob(job.hasHandler());
+                    job.setHandlerName(largs.remove());
+                    logger.info("Handler : " + job.getHandlerName());
+                    break;
+                case "--config":
+                    readConfig(largs.remove());
+                    job = jobs.get(jobs.size() - 1);
+                    break;
+                case "--debounce":
+                    job.setDebounceMillis(parseMillis(largs.remove()));
+                    logger.info("Debounce window : " + job.getDebounceMillis() + "ms");
+                    break;
+                case "--content-aware":
+                    job.setContentAware(true);
+                    break;
+                case "--fingerprint-cache":
+                    job.setFingerprintCache(Integer.parseInt(largs.remove()));
+                    break;
+                case "--max-parallel":
+                    maxParallel = Integer.parseInt(largs.remove());
+                    break;
+                case "--queue-size":
+                    queueSize = Integer.parseInt(largs.remove());
+                    break;
+                case "--backpressure":
+                    backpressure = ExecutionPool.Backpressure.parse(largs.remove());
+                    break;
+                case "--single-flight":
+                    singleFlight = ExecutionPool.SingleFlight.parse(largs.remove());
+                    break;
+                case "--batch":
+                    job.setBatch(true);
+                    break;
+                case "--manifest":
+                    job.setManifestOnStdin(parseManifest(largs.remove()));
+                    break;
+                case "--overflow":
+                    rescanOnOverflow = parseOverflow(largs.remove());
+                    break;
+                case "--parallel-register":
+                    registrationParallelism = Integer.parseInt(largs.remove());
+                    break;
+                case "--state-file":
+                    stateFileName = largs.remove();
+                    break;
+                case "--engine":
+                    polling = parseEngine(largs.remove());
+                    break;
+                case "--poll-interval":
+                    pollIntervalMillis = parseMillis(largs.remove());
+                    break;
+                case "--poll-max-interval":
+                    pollMaxIntervalMillis = parseMillis(largs.remove());
+                    break;
+                case "--lazy-depth":
+                    lazyDepth = Integer.parseInt(largs.remove());
+                    break;
+                case "--watch-budget":
+                    watchBudget = Integer.parseInt(largs.remove());
+                    break;
+                case "--cold-after":
+                    coldAfterMillis = parseMillis(largs.remove());
+                    break;
+                case "--journal":
+                    journalDirName = largs.remove();
+                    break;
+                case "--replay-since":
+                    replaySince = Long.parseLong(largs.remove());
+                    break;
+                case "--replay-since-time":
+                    replaySinceTime = parseTime(largs.remove());
+                    break;
+                case "--serve":
+                    servePort = Integer.parseInt(largs.remove());
+                    break;
+                case "--serve-buffer":
+                    serveBuffer = Integer.parseInt(largs.remove());
+                    break;
+                case "--log-buffer":
+                    logBuffer = Integer.parseInt(largs.remove());
+                    break;
+                case "--output":
+                    output = largs.remove();
+                    break;
+                case "--output-prefix":
+                    outputPrefix = true;
+                    break;
+                case "--output-buffer":
+                    outputBuffer = Integer.parseInt(largs.remove());
+                    break;
+                case "--include":
+                    job.addInclude(largs.remove());
+                    break;
+                case "--exclude":
+                    job.addExclude(largs.remove());
+                    break;
+                case "--skipDirectories":
+                    String[] skipDirectories = largs.remove().split(",");
+                    job.setSkipDirectories(skipDirectories);
+                    logger.info("Skip Directories : " + Arrays.toString(skipDirectories));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid switch!");
             }
         }
-        root = fileSystem.getPath(pathToWatch);
+    }
+
+    private WatchJob nextJob(boolean next) {
+        if (next) {
+            jobs.add(new WatchJob());
+        }
+        return jobs.get(jobs.size() - 1);
+    }
+
+    /**
+     * Reads the jobs of a config file: one job per line with the same
+     * options as the command line, empty lines and lines starting with # are
+     * skipped.
+     */
+    private void readConfig(String fileName) {
+        try {
+            for (String line : Files.readAllLines(fileSystem.getPath(fileName), Charset.forName("UTF-8"))) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                // an unused first job (no -d, -c or --handler) takes the first line
+                WatchJob last = jobs.get(jobs.size() - 1);
+                if (last.getPathToWatch() != null || last.hasHandler()) {
+                    jobs.add(new WatchJob());
+                }
+                parseArguments(splitLine(line));
+            }
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Could not read the config : " + fileName, ex);
+        }
+    }
+
+    /**
+     * Splits a config line at whitespace; double quotes group words.
+     */
+    static LinkedList<String> splitLine(String line) {
+        LinkedList<String> tokens = new LinkedList<>();
+        StringBuilder token = null;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                if (token == null) {
+                    token = new StringBuilder();
+                }
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (token != null) {
+                    tokens.add(token.toString());
+                    token = null;
+                }
+            } else {
+                if (token == null) {
+                    token = new StringBuilder();
+                }
+                token.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unbalanced quotes : " + line);
+        }
+        if (token != null) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    OutputPump createOutputPump() {
+        try {
+            return new OutputPump(factory, metrics, OutputPump.createSink(output, metrics),
+                    outputPrefix, outputBuffer);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Invalid output : " + output, ex);
+        }
+    }
+
+    static boolean parseOverflow(String value) {
+        switch (value) {
+            case "rescan":
+                return true;
+            case "ignore":
+                return false;
+            default:
+                throw new IllegalArgumentException("Invalid overflow handling : " + value);
+        }
+    }
+
+    static boolean parseEngine(String value) {
+        switch (value) {
+            case "native":
+                return false;
+            case "poll":
+                return true;
+            default:
+                throw new IllegalArgumentException("Invalid engine : " + value);
+        }
+    }
+
+    static boolean parseManifest(String value) {
+        switch (value) {
+            case "stdin":
+                return true;
+            case "file":
+                return false;
+            default:
+                throw new IllegalArgumentException("Invalid manifest : " + value);
+        }
+    }
+
+    /**
+     * Parses a duration like "200ms", "2s" or "200" (milliseconds).
+     */
+    static long parseMillis(String value) {
+        if (value.endsWith("ms")) {
+            return Long.parseLong(value.substring(0, value.length() - 2));
+        }
+        if (value.endsWith("s")) {
+            return Long.parseLong(value.substring(0, value.length() - 1)) * 1000;
+        }
+        if (value.endsWith("m")) {
+            return Long.parseLong(value.substring(0, value.length() - 1)) * 60000;
+        }
+        return Long.parseLong(value);
+    }
+
+    /**
+     * Parses a local time like "2024-05-01T12:30:00", or milliseconds since
+     * the epoch.
+     */
+    static long parseTime(String value) {
+        if (value.matches("\\d+")) {
+            return Long.parseLong(value);
+        }
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").parse(value).getTime();
+        } catch (ParseException ex) {
+            throw new IllegalArgumentException("Invalid time : " + value, ex);
+        }
     }
 
     void startWatching() throws InterruptedException {
@@ -135,22 +745,77 @@ public class FileWatcher implements Runnable {
         t.join();
     }
 
+    List<WatchJob> getJobs() {
+        return jobs;
+    }
+
+    /**
+     * The root of the first job.
+     */
     Path getRoot() {
-        return root;
+        return jobs.get(0).getRoot();
     }
 
     String getCommandToExecute() {
-        return commandToExecute;
+        return jobs.get(0).getCommandToExecute();
+    }
+
+    boolean isRescanOnOverflow() {
+        return rescanOnOverflow;
+    }
+
+    boolean isBatch() {
+        return jobs.get(0).isBatch();
+    }
+
+    boolean isManifestOnStdin() {
+        return jobs.get(0).isManifestOnStdin();
+    }
+
+    long getDebounceMillis() {
+        return jobs.get(0).getDebounceMillis();
+    }
+
+    EventServer getServer() {
+        return server;
+    }
+
+    EventJournal getJournal() {
+        return journal;
+    }
+
+    StateFile getStateFile() {
+        return stateFile;
+    }
+
+    PathFilter getFilter() {
+        return jobs.get(0).getFilter();
+    }
+
+    EventSink getSink() {
+        return jobs.get(0).getSink();
+    }
+
+    Metrics getMetrics() {
+        return metrics;
     }
 
     Logger getLogger() {
         return logger;
     }
 
+    EventLog getEventLog() {
+        return eventLog;
+    }
+
     WatchService getWatcher() {
         return watcher;
     }
 
+    WatchEngine getEngine() {
+        return engine;
+    }
+
     FileSystem getFileSystem() {
         return fileSystem;
     }
@@ -0,0 +1,51 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Prints the changes of a journal (--journal), one per line:
+ * <pre>
+ * sequence time kind path
+ * </pre>
+ * Usage: JournalQuery &lt;dir&gt; [--since N | --since-time T] [--limit N]
+ * <p>
+ * The journal is opened read only, it can be queried while the watcher
+ * writes it.
+ */
+public class JournalQuery {
+
+    public static void main(String[] args) throws IOException {
+        LinkedList<String> largs = new LinkedList<>(Arrays.asList(args));
+        if (largs.isEmpty()) {
+            throw new IllegalArgumentException("Journal directory missing!");
+        }
+        String dir = largs.remove();
+        long since = 0;
+        long sinceTime = -1;
+        int limit = Integer.MAX_VALUE;
+        while (!largs.isEmpty()) {
+            switch (largs.remove()) {
+                case "--since":
+                    since = Long.parseLong(largs.remove());
+                    break;
+                case "--since-time":
+                    sinceTime = FileWatcher.parseTime(largs.remove());
+                    break;
+                case "--limit":
+                    limit = Integer.parseInt(largs.remove());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid switch!");
+            }
+        }
+        EventJournal journal = FileWatcher.openJournal(new Factory(), Paths.get(dir), true);
+        for (EventJournal.Entry entry : sinceTime >= 0
+                ? journal.readSinceTime(sinceTime, limit) : journal.readSince(since, limit)) {
+            System.out.println(entry);
+        }
+        journal.close();
+    }
+}
@@ -0,0 +1,287 @@
+package tools;
+
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.concurrent.atomic.AtomicInteger;
+import tools.metrics.LatencyHistogram;
+import tools.metrics.StripedCounter;
+
+/**
+ * Counters of the event pipeline. The stages update them, the JMX monitor
+ * reads them. Recording does not allocate or lock: the counters are striped
+ * and the latencies go to fixed-bucket histograms.
+ */
+public class Metrics {
+
+    public static final int CREATE = 0;
+    public static final int MODIFY = 1;
+    public static final int DELETE = 2;
+
+    private final StripedCounter[] events = {
+        new StripedCounter(), new StripedCounter(), new StripedCounter()
+    };
+    private final StripedCounter suppressedEvents = new StripedCounter();
+    private final StripedCounter filteredEvents = new StripedCounter();
+    private final StripedCounter contentChecks = new StripedCounter();
+    private final StripedCounter unchangedEvents = new StripedCounter();
+    private final StripedCounter droppedTasks = new StripedCounter();
+    private final StripedCounter coalescedTasks = new StripedCounter();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final StripedCounter overflows = new StripedCounter();
+    private final StripedCounter cancelledKeys = new StripedCounter();
+    private final StripedCounter movedDirectories = new StripedCounter();
+    private final StripedCounter workerRestarts = new StripedCounter();
+    private final StripedCounter promotedKeys = new StripedCounter();
+    private final StripedCounter demotedKeys = new StripedCounter();
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private final StripedCounter droppedStreamEvents = new StripedCounter();
+    private final StripedCounter slowSubscribers = new StripedCounter();
+    private final StripedCounter recoveredEvents = new StripedCounter();
+    private final StripedCounter droppedOutputLines = new StripedCounter();
+    private final StripedCounter droppedLogRecords = new StripedCounter();
+    private final StripedCounter commandLaunches = new StripedCounter();
+    private final StripedCounter commandFailures = new StripedCounter();
+    private final LatencyHistogram startLatency = new LatencyHistogram();
+    private final LatencyHistogram completionLatency = new LatencyHistogram();
+    private volatile RingBufferOutput recentOutput;
+
+    void eventReceived(WatchEvent.Kind<?> kind) {
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+            events[CREATE].increment();
+        } else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+            events[MODIFY].increment();
+        } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            events[DELETE].increment();
+        }
+    }
+
+    void eventSuppressed() {
+        suppressedEvents.increment();
+    }
+
+    void eventFiltered() {
+        filteredEvents.increment();
+    }
+
+    void contentChecked() {
+        contentChecks.increment();
+    }
+
+    void eventUnchanged() {
+        unchangedEvents.increment();
+    }
+
+    void taskDropped() {
+        droppedTasks.increment();
+    }
+
+    void taskCoalesced() {
+        coalescedTasks.increment();
+    }
+
+    void setQueueDepth(int depth) {
+        queueDepth.set(depth);
+    }
+
+    void overflow() {
+        overflows.increment();
+    }
+
+    void keysCancelled(int count) {
+        cancelledKeys.add(count);
+    }
+
+    void directoryMoved() {
+        movedDirectories.increment();
+    }
+
+    void keyPromoted() {
+        promotedKeys.increment();
+    }
+
+    void keyDemoted() {
+        demotedKeys.increment();
+    }
+
+    void subscriberAdded() {
+        subscribers.incrementAndGet();
+    }
+
+    void subscriberRemoved() {
+        subscribers.decrementAndGet();
+    }
+
+    void streamEventDropped() {
+        droppedStreamEvents.increment();
+    }
+
+    void slowSubscriber() {
+        slowSubscribers.increment();
+    }
+
+    void workerRestarted() {
+        workerRestarts.increment();
+    }
+
+    void eventRecovered() {
+        recoveredEvents.increment();
+    }
+
+    void outputLineDropped() {
+        droppedOutputLines.increment();
+    }
+
+    void logRecordDropped() {
+        droppedLogRecords.increment();
+    }
+
+    void setRecentOutput(RingBufferOutput recentOutput) {
+        this.recentOutput = recentOutput;
+    }
+
+    /**
+     * A command is about to start for an event taken at eventNanoTime.
+     */
+    void commandStarted(long eventNanoTime) {
+        commandLaunches.increment();
+        startLatency.record(System.nanoTime() - eventNanoTime);
+    }
+
+    /**
+     * A command finished; it failed if it could not be started or its exit
+     * code is not 0.
+     */
+    void commandCompleted(long eventNanoTime, boolean failed) {
+        if (failed) {
+            commandFailures.increment();
+        }
+        completionLatency.record(System.nanoTime() - eventNanoTime);
+    }
+
+    /**
+     * Number of events of a kind: CREATE, MODIFY or DELETE.
+     */
+    public long getEvents(int kind) {
+        return events[kind].sum();
+    }
+
+    public long getSuppressedEvents() {
+        return suppressedEvents.sum();
+    }
+
+    public long getFilteredEvents() {
+        return filteredEvents.sum();
+    }
+
+    /**
+     * Number of events compared with the fingerprint of the file
+     * (--content-aware).
+     */
+    public long getContentChecks() {
+        return contentChecks.sum();
+    }
+
+    /**
+     * Number of MODIFY events dropped because the content did not change.
+     */
+    public long getUnchangedEvents() {
+        return unchangedEvents.sum();
+    }
+
+    public long getDroppedTasks() {
+        return droppedTasks.sum();
+    }
+
+    public long getCoalescedTasks() {
+        return coalescedTasks.sum();
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public long getOverflows() {
+        return overflows.sum();
+    }
+
+    /**
+     * Number of watch keys cancelled because their directory was deleted or
+     * moved.
+     */
+    public long getCancelledKeys() {
+        return cancelledKeys.sum();
+    }
+
+    public long getMovedDirectories() {
+        return movedDirectories.sum();
+    }
+
+    public long getPromotedKeys() {
+        return promotedKeys.sum();
+    }
+
+    public long getDemotedKeys() {
+        return demotedKeys.sum();
+    }
+
+    public int getSubscribers() {
+        return subscribers.get();
+    }
+
+    public long getDroppedStreamEvents() {
+        return droppedStreamEvents.sum();
+    }
+
+    public long getSlowSubscribers() {
+        return slowSubscribers.sum();
+    }
+
+    public long getWorkerRestarts() {
+        return workerRestarts.sum();
+    }
+
+    public long getRecoveredEvents() {
+        return recoveredEvents.sum();
+    }
+
+    public long getDroppedOutputLines() {
+        return droppedOutputLines.sum();
+    }
+
+    public long getDroppedLogRecords() {
+        return droppedLogRecords.sum();
+    }
+
+    public long getCommandLaunches() {
+        return commandLaunches.sum();
+    }
+
+    public long getCommandFailures() {
+        return commandFailures.sum();
+    }
+
+    /**
+     * Time from taking the event from the watch service to starting its
+     * command.
+     */
+    public LatencyHistogram getStartLatency() {
+        return startLatency;
+    }
+
+    /**
+     * Time from taking the event from the watch service to the exit of its
+     * command.
+     */
+    public LatencyHistogram getCompletionLatency() {
+        return completionLatency;
+    }
+
+    /**
+     * The last output lines of the commands if the output goes to the ring
+     * buffer (--output jmx), otherwise empty.
+     */
+    public String[] getRecentOutput() {
+        RingBufferOutput ring = recentOutput;
+        return ring == null ? new String[0] : ring.getLines();
+    }
+}
@@ -0,0 +1,40 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * The WatchService of the file system.
+ */
+class NativeWatchEngine implements WatchEngine {
+
+    private final WatchService watcher;
+
+    NativeWatchEngine(WatchService watcher) {
+        this.watcher = watcher;
+    }
+
+    @Override
+    public WatchKey register(Path dir) throws IOException {
+        return dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+    }
+
+    @Override
+    public WatchKey take() throws InterruptedException {
+        return watcher.take();
+    }
+
+    @Override
+    public WatchKey poll() {
+        return watcher.poll();
+    }
+
+    WatchService getWatcher() {
+        return watcher;
+    }
+}
@@ -0,0 +1,214 @@
+package tools;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drains stdout and stderr of the child processes and passes the lines to the
+ * output sink. Every stream is read by its own thread into a fixed size line
+ * buffer (longer lines are split), the lines are queued in a bounded queue
+ * and written to the sink by a single writer thread. If the sink can not keep
+ * up, lines are dropped and counted instead of blocking the child or the
+ * watcher.
+ */
+class OutputPump implements Runnable {
+
+    static final int MAX_LINE_LENGTH = 8192;
+    static final int DEFAULT_CAPACITY = 10000;
+    private static final long FINISH_TIMEOUT_SECONDS = 10;
+
+    @SuppressWarnings("NonConstantLogger")
+    private final Logger logger;
+    private final Factory factory;
+    private final Metrics metrics;
+    private final OutputSink sink;
+    private final boolean prefixLines;
+    private final BlockingQueue<String> lines;
+    private final ExecutorService readers;
+    private Thread writer;
+
+    OutputPump(final Factory factory, Metrics metrics, OutputSink sink, boolean prefixLines, int capacity) {
+        this.factory = factory;
+        logger = factory.createLogger(this.getClass());
+        this.metrics = metrics;
+        this.sink = sink;
+        this.prefixLines = prefixLines;
+        this.lines = new ArrayBlockingQueue<>(capacity);
+        this.readers = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return factory.createDaemonThread(r, "output-reader");
+            }
+        });
+    }
+
+    /**
+     * Creates the sink of an --output value: "stdout", "file:&lt;path&gt;"
+     * or "jmx:&lt;lines&gt;" (a ring buffer exposed via JMX).
+     */
+    static OutputSink createSink(String spec, Metrics metrics) throws IOException {
+        if (spec.equals("stdout")) {
+            return new StreamOutput(System.out);
+        }
+        if (spec.startsWith("file:")) {
+            return new StreamOutput(new PrintStream(
+                    new FileOutputStream(spec.substring("file:".length()), true), false, "UTF-8"));
+        }
+        if (spec.equals("jmx") || spec.startsWith("jmx:")) {
+            int capacity = spec.equals("jmx") ? 1000 : Integer.parseInt(spec.substring("jmx:".length()));
+            RingBufferOutput ring = new RingBufferOutput(capacity);
+            metrics.setRecentOutput(ring);
+            return ring;
+        }
+        throw new IllegalArgumentException("Invalid output : " + spec);
+    }
+
+    /**
+     * Starts draining the output of the process. The label (the changed
+     * path) is used as line prefix if prefixing is on.
+     */
+    Drain drain(Process process, String label) {
+        startWriter();
+        Drain drain = new Drain(label);
+        readers.execute(drain.reader(process.getInputStream(), prefixLines ? label + ": " : null));
+        readers.execute(drain.reader(process.getErrorStream(), prefixLines ? label + " (stderr): " : null));
+        return drain;
+    }
+
+    /**
+     * Starts draining the stderr of a long-lived process (a worker), its
+     * stdout is read by the caller.
+     */
+    void drainErrors(Process process, String label) {
+        startWriter();
+        readers.execute(new Drain(label).reader(process.getErrorStream(),
+                prefixLines ? label + " (stderr): " : null));
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                sink.write(lines.take());
+                String line;
+                while ((line = lines.poll()) != null) {
+                    sink.write(line);
+                }
+                sink.flush();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void offer(String line) {
+        if (!lines.offer(line)) {
+            metrics.outputLineDropped();
+        }
+    }
+
+    int getQueuedLines() {
+        return lines.size();
+    }
+
+    boolean isPrefixLines() {
+        return prefixLines;
+    }
+
+    OutputSink getSink() {
+        return sink;
+    }
+
+    private synchronized void startWriter() {
+        if (writer == null) {
+            writer = factory.createDaemonThread(this, "output-writer");
+            writer.start();
+        }
+    }
+
+    /**
+     * The two readers of a process.
+     */
+    class Drain {
+
+        private final String label;
+        private final CountDownLatch done = new CountDownLatch(2);
+
+        Drain(String label) {
+            this.label = label;
+        }
+
+        /**
+         * Waits (a limited time) until both streams are drained and reports
+         * the exit code if prefixing is on.
+         */
+        void finish(int exitCode) throws InterruptedException {
+            if (!done.await(FINISH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warning("Output of " + label + " is still open after the process exited.");
+            }
+            if (prefixLines) {
+                offer(label + ": exit " + exitCode);
+            }
+        }
+
+        Runnable reader(final InputStream in, final String prefix) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        read(in, prefix);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+        }
+
+        private void read(InputStream in, String prefix) {
+            char[] line = new char[MAX_LINE_LENGTH];
+            char[] chunk = new char[4096];
+            int length = 0;
+            try (Reader reader = new InputStreamReader(in)) {
+                int n;
+                while ((n = reader.read(chunk)) != -1) {
+                    for (int i = 0; i < n; i++) {
+                        char c = chunk[i];
+                        if (c == '\n') {
+                            emit(prefix, line, length);
+                            length = 0;
+                        } else if (c != '\r') {
+                            if (length == line.length) {
+                                emit(prefix, line, length);
+                                length = 0;
+                            }
+                            line[length++] = c;
+                        }
+                    }
+                }
+                if (length > 0) {
+                    emit(prefix, line, length);
+                }
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Output of " + label + " closed.", ex);
+            }
+        }
+
+        private void emit(String prefix, char[] line, int length) {
+            String text = new String(line, 0, length);
+            offer(prefix == null ? text : prefix + text);
+        }
+    }
+}
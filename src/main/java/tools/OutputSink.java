@@ -0,0 +1,15 @@
+package tools;
+
+/**
+ * Destination of the output lines of the commands. Lines are written by the
+ * single writer thread of the OutputPump.
+ */
+interface OutputSink {
+
+    void write(String line);
+
+    /**
+     * Called when there are no more lines waiting.
+     */
+    void flush();
+}
@@ -0,0 +1,78 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registers a directory tree on a fork-join pool: every directory is a task
+ * that registers the directory, records its files and forks a task for each
+ * subdirectory, so sibling subtrees are listed and registered concurrently.
+ * The root is registered on the calling thread, so a missing root fails the
+ * registration like the sequential walk does; errors below the root are
+ * logged and skip only the affected subtree.
+ */
+class ParallelRegistrar {
+
+    @SuppressWarnings("NonConstantLogger")
+    private final Logger logger;
+    private final Registry registry;
+    private final ForkJoinPool pool;
+
+    ParallelRegistrar(Factory factory, Registry registry, int parallelism) {
+        logger = factory.createLogger(this.getClass());
+        this.registry = registry;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    void register(Path root) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(root, BasicFileAttributes.class, NOFOLLOW_LINKS);
+        if (registry.skipDirectory(root)) {
+            return;
+        }
+        registry.registerDirectory(root, attrs);
+        pool.invoke(new RegisterTask(root));
+    }
+
+    int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    private class RegisterTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+
+        RegisterTask(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            List<RegisterTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path child : ds) {
+                    BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class, NOFOLLOW_LINKS);
+                    if (!attrs.isDirectory()) {
+                        registry.visitFile(child, attrs);
+                    } else if (!registry.skipDirectory(child)) {
+                        registry.registerDirectory(child, attrs);
+                        subtasks.add(new RegisterTask(child));
+                    }
+                }
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Could not register the subtree of " + dir, ex);
+            }
+            invokeAll(subtasks);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package tools;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The --include and --exclude rules, compiled once. A rule is a glob (the
+ * default, or "glob:" prefix) or a regular expression ("regex:" prefix).
+ * Globs without a slash match the file name, globs with a slash and regular
+ * expressions match the path relative to the watched root.
+ * <p>
+ * Plain names ("target") and extensions ("*.class") are hash lookups; the
+ * remaining rules of a kind are joined into one pattern. An excluded
+ * directory is not registered, so nothing below it costs anything.
+ */
+class PathFilter {
+
+    private final Path root;
+    private final Rules includes;
+    private final Rules excludes;
+
+    PathFilter(Path root, Collection<String> includes, Collection<String> excludes) {
+        this.root = root;
+        this.includes = includes.isEmpty() ? null : new Rules(includes);
+        this.excludes = excludes.isEmpty() ? null : new Rules(excludes);
+    }
+
+    /**
+     * A filter excluding the given names, for --skipDirectories.
+     */
+    static PathFilter excluding(String... names) {
+        return new PathFilter(null, Collections.<String>emptyList(), Arrays.asList(names));
+    }
+
+    /**
+     * Whether the path (a file or a directory) matches an exclude rule.
+     * Excluded directories are not registered.
+     */
+    boolean isExcluded(Path path) {
+        return excludes != null && excludes.matches(this, path);
+    }
+
+    /**
+     * Whether an event of the path is passed to the command: it is not
+     * excluded and, if there are include rules, matches one of them.
+     */
+    boolean accepts(Path path) {
+        return !isExcluded(path) && (includes == null || includes.matches(this, path));
+    }
+
+    String relative(Path path) {
+        Path relative = root != null && path.startsWith(root) ? root.relativize(path) : path;
+        String value = relative.toString();
+        return File.separatorChar == '/' ? value : value.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Translates a glob to a regular expression: "*" and "?" do not cross
+     * directories, "**" does (also zero directories when followed by a
+     * slash), "{a,b}" is an alternative and "[...]" a character class.
+     */
+    static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inGroup = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (glob.startsWith("**/", i)) {
+                        // also matches no directory at all
+                        regex.append("(?:.*/)?");
+                        i += 2;
+                    } else if (glob.startsWith("**", i)) {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '{':
+                    regex.append("(?:");
+                    inGroup = true;
+                    break;
+                case '}':
+                    regex.append(')');
+                    inGroup = false;
+                    break;
+                case ',':
+                    regex.append(inGroup ? "|" : ",");
+                    break;
+                case '[':
+                    int end = glob.indexOf(']', i + 1);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Invalid glob : " + glob);
+                    }
+                    String set = glob.substring(i + 1, end);
+                    regex.append('[').append(set.startsWith("!") ? "^" + set.substring(1) : set).append(']');
+                    i = end;
+                    break;
+                case '\\':
+                    if (i + 1 < glob.length()) {
+                        regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                    }
+                    break;
+                default:
+                    if (".()+^$|".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+            }
+        }
+        return regex.toString();
+    }
+
+    private static boolean isLiteral(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            if ("*?{}[]\\".indexOf(glob.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Pattern join(List<String> regexes) {
+        if (regexes.isEmpty()) {
+            return null;
+        }
+        StringBuilder joined = new StringBuilder();
+        for (String regex : regexes) {
+            if (joined.length() > 0) {
+                joined.append('|');
+            }
+            joined.append("(?:").append(regex).append(')');
+        }
+        return Pattern.compile(joined.toString());
+    }
+
+    /**
+     * The compiled include or exclude rules.
+     */
+    private static class Rules {
+
+        private final Set<String> names = new HashSet<>();
+        private final Set<String> extensions = new HashSet<>();
+        private final Pattern namePattern;
+        private final Pattern pathPattern;
+
+        Rules(Collection<String> rules) {
+            List<String> nameRegexes = new ArrayList<>();
+            List<String> pathRegexes = new ArrayList<>();
+            for (String rule : rules) {
+                if (rule.startsWith("regex:")) {
+                    pathRegexes.add(rule.substring("regex:".length()));
+                    continue;
+                }
+                String glob = rule.startsWith("glob:") ? rule.substring("glob:".length()) : rule;
+                // "target/" means the directory target
+                while (glob.length() > 1 && glob.endsWith("/")) {
+                    glob = glob.substring(0, glob.length() - 1);
+                }
+                if (glob.isEmpty()) {
+                    throw new IllegalArgumentException("Invalid filter : " + rule);
+                }
+                if (glob.indexOf('/') >= 0) {
+                    pathRegexes.add(globToRegex(glob.startsWith("/") ? glob.substring(1) : glob));
+                } else if (isLiteral(glob)) {
+                    names.add(glob);
+                } else if (glob.startsWith("*.") && isLiteral(glob.substring(2))
+                        && glob.indexOf('.', 2) < 0) {
+                    extensions.add(glob.substring(2));
+                } else {
+                    nameRegexes.add(globToRegex(glob));
+                }
+            }
+            namePattern = join(nameRegexes);
+            pathPattern = join(pathRegexes);
+        }
+
+        boolean matches(PathFilter filter, Path path) {
+            Path fileName = path.getFileName();
+            if (fileName != null) {
+                String name = fileName.toString();
+                if (names.contains(name)) {
+                    return true;
+                }
+                int dot = name.lastIndexOf('.');
+                if (dot >= 0 && !extensions.isEmpty() && extensions.contains(name.substring(dot + 1))) {
+                    return true;
+                }
+                if (namePattern != null && namePattern.matcher(name).matches()) {
+                    return true;
+                }
+            }
+            return pathPattern != null && pathPattern.matcher(filter.relative(path)).matches();
+        }
+    }
+}
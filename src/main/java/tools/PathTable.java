@@ -0,0 +1,399 @@
+package tools;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact store of directory paths: a tree of name segments with parent
+ * pointers, every path is an int id. A path costs a few ints instead of a
+ * Path and a String of the full name, and a name shared by many directories
+ * ("src", "main", "target") is stored once. The children of a node are
+ * linked, so the paths of a subtree are found by walking down from its root.
+ * A value can be attached to every id. A Path is only built on request.
+ *
+ * The nodes are columns of int arrays; a node is found by its parent and
+ * name through a chained hash table over the same ids. Removed ids are
+ * reused. The methods are synchronized: the table is written by the
+ * registration threads and read on deletes, not per event.
+ */
+class PathTable<V> {
+
+    static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final List<String> names = new ArrayList<>();
+    // hash table of the names: bucket heads and chains, NONE terminated
+    private int[] nameBuckets;
+    private int[] nameNext = new int[INITIAL_CAPACITY];
+    private int[] parents;
+    private int[] nameOf;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int[] previousSibling;
+    private int[] hashNext;
+    private Object[] values;
+    // head of the chain of a hash bucket, NONE if empty
+    private int[] buckets;
+    // ids used so far, the removed ones are chained through nextSibling
+    private int used;
+    private int size;
+    private int free = NONE;
+    private FileSystem fileSystem;
+    private char separator = '/';
+
+    PathTable() {
+        parents = new int[INITIAL_CAPACITY];
+        nameOf = new int[INITIAL_CAPACITY];
+        firstChild = new int[INITIAL_CAPACITY];
+        nextSibling = new int[INITIAL_CAPACITY];
+        previousSibling = new int[INITIAL_CAPACITY];
+        hashNext = new int[INITIAL_CAPACITY];
+        values = new Object[INITIAL_CAPACITY];
+        buckets = new int[INITIAL_CAPACITY];
+        Arrays.fill(buckets, NONE);
+        nameBuckets = new int[INITIAL_CAPACITY];
+        Arrays.fill(nameBuckets, NONE);
+    }
+
+    /**
+     * The id of the path, added with its parents if it is not in the table.
+     * NONE for an empty path.
+     */
+    synchronized int intern(Path path) {
+        if (fileSystem == null) {
+            fileSystem = path.getFileSystem();
+            separator = fileSystem == null ? '/' : fileSystem.getSeparator().charAt(0);
+        }
+        return walk(path, true);
+    }
+
+    /**
+     * The id of the path, NONE if it is not in the table. The names are
+     * matched in the string of the path, nothing is allocated.
+     */
+    synchronized int find(Path path) {
+        return size == 0 ? NONE : walk(path, false);
+    }
+
+    synchronized void put(Path path, V value) {
+        int id = intern(path);
+        if (id != NONE) {
+            values[id] = value;
+        }
+    }
+
+    synchronized V get(Path path) {
+        int id = find(path);
+        return id == NONE ? null : getValue(id);
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized V getValue(int id) {
+        return (V) values[id];
+    }
+
+    /**
+     * Removes the value of the path if it is the given one. Nodes left
+     * without a value and without children are removed.
+     */
+    synchronized boolean remove(Path path, V value) {
+        int id = find(path);
+        if (id == NONE || values[id] != value) {
+            return false;
+        }
+        values[id] = null;
+        prune(id);
+        return true;
+    }
+
+    /**
+     * The ids of the node and of every node below it.
+     */
+    synchronized int[] subtree(int id) {
+        int[] ids = new int[16];
+        int count = 0;
+        int[] stack = new int[16];
+        int depth = 0;
+        stack[depth++] = id;
+        while (depth > 0) {
+            int node = stack[--depth];
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = node;
+            for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = child;
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Removes the node with everything below it.
+     */
+    synchronized void removeSubtree(int id) {
+        int parent = parents[id];
+        for (int node : subtree(id)) {
+            unlink(node);
+            values[node] = null;
+            nextSibling[node] = free;
+            free = node;
+            size--;
+        }
+        if (parent != NONE) {
+            prune(parent);
+        }
+    }
+
+    /**
+     * Builds the Path of an id.
+     */
+    synchronized Path toPath(int id) {
+        int depth = 0;
+        for (int node = id; node != NONE; node = parents[node]) {
+            depth++;
+        }
+        String[] more = new String[depth - 1];
+        int node = id;
+        for (int i = depth - 2; i >= 0; i--) {
+            more[i] = names.get(nameOf[node]);
+            node = parents[node];
+        }
+        return fileSystem.getPath(names.get(nameOf[node]), more);
+    }
+
+    synchronized int getParent(int id) {
+        return parents[id];
+    }
+
+    synchronized String getName(int id) {
+        return names.get(nameOf[id]);
+    }
+
+    /**
+     * Number of paths in the table.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Number of distinct name segments.
+     */
+    synchronized int getNameCount() {
+        return names.size();
+    }
+
+    /**
+     * Follows the names of the path from its root, creating the missing
+     * nodes or returning NONE at the first missing one.
+     */
+    private int walk(Path path, boolean create) {
+        String value = path.toString();
+        int id = NONE;
+        int start = 0;
+        Path root = path.getRoot();
+        if (root != null) {
+            String rootName = root.toString();
+            id = step(NONE, rootName, 0, rootName.length(), create);
+            start = rootName.length();
+        }
+        while (start < value.length() && (id != NONE || start == 0)) {
+            int end = value.indexOf(separator, start);
+            if (end < 0) {
+                end = value.length();
+            }
+            if (end > start) {
+                id = step(id, value, start, end, create);
+            }
+            start = end + 1;
+        }
+        return id;
+    }
+
+    private int step(int parent, String value, int start, int end, boolean create) {
+        int name = findName(value, start, end);
+        if (!create) {
+            return name == NONE ? NONE : findChild(parent, name);
+        }
+        if (name == NONE) {
+            name = addName(value.substring(start, end));
+        }
+        return child(parent, name);
+    }
+
+    private int findName(String value, int start, int end) {
+        int length = end - start;
+        for (int id = nameBuckets[nameHash(value, start, end) & (nameBuckets.length - 1)];
+                id != NONE; id = nameNext[id]) {
+            String name = names.get(id);
+            if (name.length() == length && name.regionMatches(0, value, start, length)) {
+                return id;
+            }
+        }
+        return NONE;
+    }
+
+    private int addName(String name) {
+        int id = names.size();
+        names.add(name);
+        if (id == nameNext.length) {
+            nameNext = Arrays.copyOf(nameNext, id * 2);
+        }
+        if (names.size() > nameBuckets.length - nameBuckets.length / 4) {
+            nameBuckets = new int[nameBuckets.length * 2];
+            Arrays.fill(nameBuckets, NONE);
+            for (int i = 0; i < id; i++) {
+                linkName(i);
+            }
+        }
+        linkName(id);
+        return id;
+    }
+
+    private void linkName(int id) {
+        String name = names.get(id);
+        int bucket = nameHash(name, 0, name.length()) & (nameBuckets.length - 1);
+        nameNext[id] = nameBuckets[bucket];
+        nameBuckets[bucket] = id;
+    }
+
+    private static int nameHash(String value, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + value.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private int findChild(int parent, int name) {
+        for (int id = buckets[bucket(parent, name)]; id != NONE; id = hashNext[id]) {
+            if (parents[id] == parent && nameOf[id] == name) {
+                return id;
+            }
+        }
+        return NONE;
+    }
+
+    private int child(int parent, int name) {
+        int id = findChild(parent, name);
+        if (id != NONE) {
+            return id;
+        }
+        id = allocate();
+        parents[id] = parent;
+        nameOf[id] = name;
+        firstChild[id] = NONE;
+        previousSibling[id] = NONE;
+        nextSibling[id] = NONE;
+        if (parent != NONE) {
+            int first = firstChild[parent];
+            nextSibling[id] = first;
+            if (first != NONE) {
+                previousSibling[first] = id;
+            }
+            firstChild[parent] = id;
+        }
+        int bucket = bucket(parent, name);
+        hashNext[id] = buckets[bucket];
+        buckets[bucket] = id;
+        size++;
+        if (size > buckets.length - buckets.length / 4) {
+            rehash(buckets.length * 2);
+        }
+        return id;
+    }
+
+    private int allocate() {
+        if (free != NONE) {
+            int id = free;
+            free = nextSibling[id];
+            return id;
+        }
+        if (used == parents.length) {
+            int capacity = used * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            nameOf = Arrays.copyOf(nameOf, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            previousSibling = Arrays.copyOf(previousSibling, capacity);
+            hashNext = Arrays.copyOf(hashNext, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        return used++;
+    }
+
+    /**
+     * Removes the empty nodes from the node up.
+     */
+    private void prune(int id) {
+        while (id != NONE && values[id] == null && firstChild[id] == NONE) {
+            int parent = parents[id];
+            unlink(id);
+            nextSibling[id] = free;
+            free = id;
+            size--;
+            id = parent;
+        }
+    }
+
+    /**
+     * Takes the node out of the hash chain and of the children of its
+     * parent.
+     */
+    private void unlink(int id) {
+        int bucket = bucket(parents[id], nameOf[id]);
+        if (buckets[bucket] == id) {
+            buckets[bucket] = hashNext[id];
+        } else {
+            int previous = buckets[bucket];
+            while (hashNext[previous] != id) {
+                previous = hashNext[previous];
+            }
+            hashNext[previous] = hashNext[id];
+        }
+        int parent = parents[id];
+        if (previousSibling[id] != NONE) {
+            nextSibling[previousSibling[id]] = nextSibling[id];
+        } else if (parent != NONE && firstChild[parent] == id) {
+            firstChild[parent] = nextSibling[id];
+        }
+        if (nextSibling[id] != NONE) {
+            previousSibling[nextSibling[id]] = previousSibling[id];
+        }
+        // in removeSubtree the children are unlinked after their parent, they
+        // keep their own parent id for the hash chain
+        parents[id] = NONE;
+        firstChild[id] = NONE;
+        previousSibling[id] = NONE;
+        nextSibling[id] = NONE;
+    }
+
+    private void rehash(int capacity) {
+        buckets = new int[capacity];
+        Arrays.fill(buckets, NONE);
+        int[] freed = new int[used];
+        for (int id = free; id != NONE; id = nextSibling[id]) {
+            freed[id] = 1;
+        }
+        for (int id = 0; id < used; id++) {
+            if (freed[id] == 0) {
+                int bucket = bucket(parents[id], nameOf[id]);
+                hashNext[id] = buckets[bucket];
+                buckets[bucket] = id;
+            }
+        }
+    }
+
+    private int bucket(int parent, int name) {
+        int h = parent * 0x9E3779B1 + name;
+        h ^= h >>> 16;
+        return h & (buckets.length - 1);
+    }
+}
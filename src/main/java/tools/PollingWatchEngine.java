@@ -0,0 +1,334 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the changes by listing the registered directories (--engine poll),
+ * for network mounts and overlay file systems the WatchService does not see.
+ * The last listing of every directory is cached, a scan compares the new
+ * listing with it. Every directory has its own interval: it drops to the
+ * minimum when the directory changed and doubles (up to the maximum) on
+ * every scan without a change, so hot directories are scanned often and cold
+ * ones rarely.
+ * <p>
+ * A shallow engine (the cold directories of --lazy-depth) reads only the
+ * modification time of a directory per scan, one stat instead of one per
+ * entry; the directory is listed and compared only when that time changed.
+ * The time changes when an entry is created, deleted or renamed, not when a
+ * file is written in place. A listing taken within the granularity of the
+ * time after the last change could miss a change in the same tick, such a
+ * directory is compared again on the next scan.
+ */
+class PollingWatchEngine implements WatchEngine, Runnable {
+
+    // the coarsest modification time granularity (FAT)
+    private static final long RACY_MILLIS = 2000;
+
+    @SuppressWarnings("NonConstantLogger")
+    private final Logger logger;
+    private final Factory factory;
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+    private final boolean shallow;
+    private final ConcurrentMap<Path, PollingKey> keys = new ConcurrentHashMap<>();
+    private final BlockingQueue<PollingKey> signalled = new LinkedBlockingQueue<>();
+    private Thread poller;
+
+    PollingWatchEngine(Factory factory, long minIntervalMillis, long maxIntervalMillis) {
+        this(factory, minIntervalMillis, maxIntervalMillis, false);
+    }
+
+    PollingWatchEngine(Factory factory, long minIntervalMillis, long maxIntervalMillis, boolean shallow) {
+        this.factory = factory;
+        this.shallow = shallow;
+        logger = factory.createLogger(this.getClass());
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+        this.maxIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(minIntervalMillis, maxIntervalMillis));
+    }
+
+    @Override
+    public WatchKey register(Path dir) throws IOException {
+        PollingKey key = keys.get(dir);
+        if (key == null) {
+            // read before the listing, a change while listing is seen later
+            FileTime modified = shallow ? modified(dir) : null;
+            long listed = System.currentTimeMillis();
+            PollingKey created = new PollingKey(dir, list(dir), modified, listed, System.nanoTime());
+            key = keys.putIfAbsent(dir, created);
+            if (key == null) {
+                key = created;
+            }
+        }
+        startPoller();
+        return key;
+    }
+
+    @Override
+    public WatchKey take() throws InterruptedException {
+        return signalled.take();
+    }
+
+    @Override
+    public WatchKey poll() {
+        return signalled.poll();
+    }
+
+    @Override
+    public void run() {
+        long tickMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(minIntervalNanos) / 2);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                scanDue(System.nanoTime());
+                TimeUnit.MILLISECONDS.sleep(tickMillis);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Scans the directories whose interval has passed.
+     */
+    void scanDue(long now) {
+        for (PollingKey key : keys.values()) {
+            if (now - key.nextScan >= 0) {
+                key.scan(now);
+            }
+        }
+    }
+
+    int getKeyCount() {
+        return keys.size();
+    }
+
+    PollingKey getKey(Path dir) {
+        return keys.get(dir);
+    }
+
+    private synchronized void startPoller() {
+        if (poller == null) {
+            poller = factory.createDaemonThread(this, "poller");
+            poller.start();
+        }
+    }
+
+    private static FileTime modified(Path dir) throws IOException {
+        return Files.readAttributes(dir, BasicFileAttributes.class, NOFOLLOW_LINKS).lastModifiedTime();
+    }
+
+    private static Map<Path, TreeSnapshot.Entry> list(Path dir) throws IOException {
+        Map<Path, TreeSnapshot.Entry> listing = new HashMap<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path child : ds) {
+                try {
+                    listing.put(child.getFileName(), new TreeSnapshot.Entry(
+                            Files.readAttributes(child, BasicFileAttributes.class, NOFOLLOW_LINKS)));
+                } catch (NoSuchFileException ex) {
+                    // deleted while listing
+                }
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * The key of a directory. Like a key of the WatchService it is queued
+     * once when it gets events and again on reset if events arrived in the
+     * meantime.
+     */
+    class PollingKey implements WatchKey {
+
+        private final Path dir;
+        private Map<Path, TreeSnapshot.Entry> listing;
+        // the modification time of the directory and when it was listed,
+        // shallow engine only
+        private FileTime modified;
+        private long listed;
+        private List<WatchEvent<?>> events = new ArrayList<>();
+        private boolean queued;
+        private volatile boolean valid = true;
+        private long interval = minIntervalNanos;
+        private volatile long nextScan;
+
+        PollingKey(Path dir, Map<Path, TreeSnapshot.Entry> listing, FileTime modified, long listed, long now) {
+            this.dir = dir;
+            this.listing = listing;
+            this.modified = modified;
+            this.listed = listed;
+            this.nextScan = now + interval;
+        }
+
+        /**
+         * Compares the directory with the previous listing; for a shallow
+         * engine only if its modification time changed.
+         */
+        void scan(long now) {
+            if (!valid) {
+                return;
+            }
+            if (shallow) {
+                FileTime current;
+                try {
+                    current = modified(dir);
+                } catch (IOException ex) {
+                    gone(ex);
+                    return;
+                }
+                if (current.equals(modified) && listed - current.toMillis() > RACY_MILLIS) {
+                    interval = Math.min(interval * 2, maxIntervalNanos);
+                    nextScan = now + interval;
+                    return;
+                }
+                modified = current;
+            }
+            diff(now);
+        }
+
+        /**
+         * Lists the directory and compares it with the previous listing.
+         */
+        void diff(long now) {
+            if (!valid) {
+                return;
+            }
+            Map<Path, TreeSnapshot.Entry> current;
+            try {
+                listed = System.currentTimeMillis();
+                current = list(dir);
+            } catch (IOException ex) {
+                gone(ex);
+                return;
+            }
+            List<WatchEvent<?>> changes = new ArrayList<>();
+            for (Map.Entry<Path, TreeSnapshot.Entry> e : current.entrySet()) {
+                TreeSnapshot.Entry old = listing.get(e.getKey());
+                if (old == null) {
+                    changes.add(new PolledEvent(ENTRY_CREATE, e.getKey()));
+                } else if (old.directory != e.getValue().directory) {
+                    changes.add(new PolledEvent(ENTRY_DELETE, e.getKey()));
+                    changes.add(new PolledEvent(ENTRY_CREATE, e.getKey()));
+                } else if (!old.directory && e.getValue().differs(old)) {
+                    changes.add(new PolledEvent(ENTRY_MODIFY, e.getKey()));
+                }
+            }
+            for (Path name : listing.keySet()) {
+                if (!current.containsKey(name)) {
+                    changes.add(new PolledEvent(ENTRY_DELETE, name));
+                }
+            }
+            listing = current;
+            interval = changes.isEmpty() ? Math.min(interval * 2, maxIntervalNanos) : minIntervalNanos;
+            nextScan = now + interval;
+            if (!changes.isEmpty()) {
+                signal(changes);
+            }
+        }
+
+        private void gone(IOException ex) {
+            logger.log(Level.FINE, "Directory is gone : " + dir, ex);
+            keys.remove(dir);
+            valid = false;
+            signal(null);
+        }
+
+        private synchronized void signal(List<WatchEvent<?>> changes) {
+            if (changes != null) {
+                events.addAll(changes);
+            }
+            if (!queued) {
+                queued = true;
+                signalled.add(this);
+            }
+        }
+
+        long getInterval() {
+            return interval;
+        }
+
+        @Override
+        public boolean isValid() {
+            return valid;
+        }
+
+        @Override
+        public synchronized List<WatchEvent<?>> pollEvents() {
+            List<WatchEvent<?>> polled = events;
+            events = new ArrayList<>();
+            return polled;
+        }
+
+        @Override
+        public synchronized boolean reset() {
+            if (!valid) {
+                return false;
+            }
+            queued = false;
+            if (!events.isEmpty()) {
+                queued = true;
+                signalled.add(this);
+            }
+            return true;
+        }
+
+        @Override
+        public void cancel() {
+            valid = false;
+            keys.remove(dir);
+        }
+
+        @Override
+        public Watchable watchable() {
+            return dir;
+        }
+    }
+
+    private static class PolledEvent implements WatchEvent<Path> {
+
+        private final Kind<Path> kind;
+        private final Path context;
+
+        PolledEvent(Kind<Path> kind, Path context) {
+            this.kind = kind;
+            this.context = context;
+        }
+
+        @Override
+        public Kind<Path> kind() {
+            return kind;
+        }
+
+        @Override
+        public int count() {
+            return 1;
+        }
+
+        @Override
+        public Path context() {
+            return context;
+        }
+    }
+}
@@ -1,49 +1,98 @@
 package tools;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
-import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
-import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import tools.metrics.LatencyHistogram;
 
 /**
  * This class registers the WatchKeys and the containing parent directory path
  * in a map. Can be instantiated via the constructor or the Factory. Registry
  * uses the factory object to walk the FileTree and create the logger.
+ *
+ * The maps are concurrent (the Factory passes a ConcurrentHashMap), so the
+ * watch loop looks keys up without locking while directories are registered
+ * and removed by other threads. A reverse index from directory to key, a
+ * PathTable, finds the keys of a subtree by walking down the tree of names;
+ * it stores the name segments once instead of a String per directory.
  */
 public class Registry extends SimpleFileVisitor<Path> {
 
     @SuppressWarnings("NonConstantLogger")
     private final Logger logger;
+    private EventLog eventLog;
     private final WatchService watcher;
+    private WatchEngine engine;
     private final Map<WatchKey, Path> keys;
+    private final Map<WatchKey, String> canonicalPaths = new ConcurrentHashMap<>();
+    // directory -> key
+    private final PathTable<WatchKey> directories = new PathTable<>();
+    private final AtomicLong registeredDirectories = new AtomicLong();
+    private final AtomicLong registrationNanos = new AtomicLong();
+    private final LatencyHistogram registrationLatency = new LatencyHistogram();
+    private final AtomicInteger registrationsInProgress = new AtomicInteger();
     private final Factory factory;
     private String[] skipDirectories;
+    private PathFilter filter;
+    private List<WatchJob> jobs = Collections.emptyList();
+    private final Map<WatchKey, List<WatchJob>> jobsByKey = new ConcurrentHashMap<>();
+    private TreeSnapshot snapshot;
+    private ParallelRegistrar parallelRegistrar;
 
     public Registry(Factory factory, WatchService watcher, Map<WatchKey, Path> keys) {
         this.factory = factory;
         logger = factory.createLogger(this.getClass());
+        eventLog = new EventLog(logger);
         this.watcher = watcher;
+        this.engine = new NativeWatchEngine(watcher);
         this.keys = keys;
     }
 
     @Override
     public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
         if (skipDirectory(dir)) {
-            return FileVisitResult.SKIP_SIBLINGS;
+            return FileVisitResult.SKIP_SUBTREE;
         }
-        WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        registerDirectory(dir, attrs);
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Registers a single directory. Called by the sequential walk and,
+     * concurrently, by the parallel registrar.
+     */
+    void registerDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        WatchKey key = engine.register(dir);
         keys.put(key, dir);
+        directories.put(dir, key);
+        if (snapshot != null) {
+            snapshot.recordDirectory(dir, attrs);
+        }
+        registeredDirectories.incrementAndGet();
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (snapshot != null && !isExcluded(file)) {
+            snapshot.recordFile(file, attrs);
+        }
         return FileVisitResult.CONTINUE;
     }
     
@@ -51,21 +100,143 @@ public class Registry extends SimpleFileVisitor<Path> {
         return keys.keySet();
     }
 
+    /**
+     * Number of directories registered so far, it shows the progress of a
+     * running registration.
+     */
+    public long getRegisteredDirectories() {
+        return registeredDirectories.get();
+    }
+
+    /**
+     * Total time spent in registering directories.
+     */
+    public long getRegistrationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(registrationNanos.get());
+    }
+
+    /**
+     * Durations of the registerWatchers calls.
+     */
+    public LatencyHistogram getRegistrationLatency() {
+        return registrationLatency;
+    }
+
+    public boolean isRegistering() {
+        return registrationsInProgress.get() > 0;
+    }
+
     public String[] getSkipDirectories() {
         return skipDirectories;
     }
 
     public void setSkipDirectories(String[] skipDirectories) {
         this.skipDirectories = skipDirectories;
+        this.filter = skipDirectories == null ? null : PathFilter.excluding(skipDirectories);
+    }
+
+    PathFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Directories excluded by the filter are not registered, files excluded
+     * by it are not recorded in the snapshot.
+     */
+    void setFilter(PathFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * The jobs sharing this registry. Their filters decide which directories
+     * are registered, instead of the filter of the registry.
+     */
+    void setJobs(List<WatchJob> jobs) {
+        this.jobs = jobs;
+        jobsByKey.clear();
+    }
+
+    /**
+     * The jobs owning the directory of the key: every job with a root
+     * containing it, the roots may be nested. Resolved on the first event of
+     * the key and cached.
+     */
+    List<WatchJob> getJobs(WatchKey key) {
+        List<WatchJob> owners = jobsByKey.get(key);
+        if (owners == null) {
+            Path dir = keys.get(key);
+            if (dir == null) {
+                return Collections.emptyList();
+            }
+            owners = getJobs(dir);
+            jobsByKey.put(key, owners);
+        }
+        return owners;
+    }
+
+    /**
+     * The jobs with a root containing the path, in the order of the jobs;
+     * empty if there is none.
+     */
+    List<WatchJob> getJobs(Path path) {
+        List<WatchJob> owners = null;
+        for (WatchJob job : jobs) {
+            if (path.startsWith(job.getRoot())) {
+                if (owners == null) {
+                    owners = new ArrayList<>(2);
+                }
+                owners.add(job);
+            }
+        }
+        return owners == null ? Collections.<WatchJob>emptyList() : owners;
+    }
+
+    WatchEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * The engine the directories are registered with, the native
+     * WatchService by default.
+     */
+    void setEngine(WatchEngine engine) {
+        this.engine = engine;
+    }
+
+    TreeSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    void setSnapshot(TreeSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * With a parallelism above one the directory tree is registered on a
+     * fork-join pool instead of the sequential walk.
+     */
+    void setParallelism(int parallelism) {
+        parallelRegistrar = parallelism > 1 ? new ParallelRegistrar(factory, this, parallelism) : null;
+    }
+
+    ParallelRegistrar getParallelRegistrar() {
+        return parallelRegistrar;
     }
 
     boolean registerWatchers(Path subDir) {
+        long start = System.nanoTime();
+        registrationsInProgress.incrementAndGet();
         try {
-            logger.info(String.format("Start watching %s", subDir.toString()));
+            eventLog.info("Start watching {0}", subDir);
             register(subDir);
             return true;
         } catch (IOException ex) {
             logger.log(Level.SEVERE, "Exception at registering directory watchers.", ex);
+        } finally {
+            registrationsInProgress.decrementAndGet();
+            long elapsed = System.nanoTime() - start;
+            registrationNanos.addAndGet(elapsed);
+            registrationLatency.record(elapsed);
         }
         return false;
     }
@@ -73,7 +244,10 @@ public class Registry extends SimpleFileVisitor<Path> {
     boolean checkHasADirectory(WatchKey key) {
         Path dir = keys.get(key);
         if (dir == null) {
-            logger.severe(String.format("Watchkey not found! %s", key));
+            // keys cancelled with their subtree may still be queued
+            if (key.isValid()) {
+                logger.log(Level.SEVERE, "Watchkey not found! {0}", key);
+            }
             return false;
         }
         return true;
@@ -83,33 +257,158 @@ public class Registry extends SimpleFileVisitor<Path> {
         return keys.get(key);
     }
 
+    /**
+     * The key of a registered directory, null if it is not registered.
+     */
+    WatchKey getKey(Path dir) {
+        return directories.get(dir);
+    }
+
+    /**
+     * Cancels and removes the keys of the directory and of every directory
+     * below it, in time proportional to the size of the subtree. Returns the
+     * number of removed keys.
+     */
+    int cancelSubtree(Path dir) {
+        int removed = 0;
+        synchronized (directories) {
+            int id = directories.find(dir);
+            if (id == PathTable.NONE) {
+                return 0;
+            }
+            for (int node : directories.subtree(id)) {
+                WatchKey key = directories.getValue(node);
+                Path current = key == null ? null : keys.get(key);
+                // a moved directory keeps its key: if it was registered again
+                // under the new name, the key is not cancelled
+                if (current != null && directories.find(current) == node) {
+                    key.cancel();
+                    keys.remove(key);
+                    canonicalPaths.remove(key);
+                    jobsByKey.remove(key);
+                    removed++;
+                }
+            }
+            directories.removeSubtree(id);
+        }
+        return removed;
+    }
+
+    /**
+     * The canonical path of the directory of the key. It is resolved on the
+     * first event of the directory and cached, null if it can not be
+     * resolved.
+     */
+    String getCanonicalPath(WatchKey key) {
+        String canonical = canonicalPaths.get(key);
+        if (canonical == null) {
+            Path dir = keys.get(key);
+            if (dir != null) {
+                try {
+                    canonical = dir.toFile().getCanonicalPath();
+                    canonicalPaths.put(key, canonical);
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Could not resolve " + dir, ex);
+                }
+            }
+        }
+        return canonical;
+    }
+
+    /**
+     * Keeps the snapshot in line with an event of the watch loop.
+     */
+    void refresh(WatchEvent.Kind<?> kind, Path child) {
+        if (snapshot != null) {
+            snapshot.update(kind, child);
+        }
+    }
+
+    /**
+     * Recovers the changes lost by an OVERFLOW of the key: the directory of
+     * the key is compared with the snapshot, new subdirectories are
+     * registered. Returns the differences, an empty list without a snapshot.
+     */
+    List<ChangeEvent> rescan(WatchKey key) {
+        Path dir = keys.get(key);
+        if (snapshot == null || dir == null) {
+            return Collections.emptyList();
+        }
+        try {
+            List<ChangeEvent> changes = snapshot.rescan(dir, getCanonicalPath(key));
+            for (ChangeEvent change : changes) {
+                if (change.getKind() == ENTRY_CREATE && factory.isDirectory(change.getPath())) {
+                    registerWatchers(change.getPath());
+                }
+            }
+            return changes;
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Could not rescan " + dir, ex);
+            return Collections.emptyList();
+        }
+    }
+
     void remove(WatchKey key) {
-        keys.remove(key);
+        Path dir = keys.remove(key);
+        if (dir != null) {
+            directories.remove(dir, key);
+        }
+        canonicalPaths.remove(key);
+        jobsByKey.remove(key);
     }
 
     private void register(Path rootAll) throws IOException {
-        factory.walkFileTree(rootAll, this);
+        ParallelRegistrar registrar = parallelRegistrar;
+        if (registrar != null) {
+            registrar.register(rootAll);
+        } else {
+            factory.walkFileTree(rootAll, this);
+        }
     }
 
     Logger getLogger() {
         return logger;
     }
 
+    /**
+     * The sink of the per directory log lines, e.g. the ring of the watch
+     * loop (--log-buffer).
+     */
+    void setEventLog(EventLog eventLog) {
+        this.eventLog = eventLog;
+    }
+
     WatchService getWatcher() {
         return watcher;
     }
 
+    /**
+     * Number of directories in the reverse index and of their distinct
+     * names.
+     */
+    int getIndexedDirectories() {
+        return directories.size();
+    }
+
+    int getIndexedNames() {
+        return directories.getNameCount();
+    }
+
     boolean skipDirectory(Path dir) {
-        if (skipDirectories != null && skipDirectories.length > 0) {
-            File f = dir.toFile();
-            if (f.isDirectory()) {
-                for (String skipDir : skipDirectories) {
-                    if (skipDir.equals(f.getName())) {
-                        return true;
-                    }
-                }
+        return isExcluded(dir);
+    }
+
+    private boolean isExcluded(Path path) {
+        if (jobs.isEmpty()) {
+            return filter != null && filter.isExcluded(path);
+        }
+        // skipped only if no job with a root above it watches it
+        List<WatchJob> owners = getJobs(path);
+        for (WatchJob job : owners) {
+            if (!job.isExcluded(path)) {
+                return false;
             }
         }
-        return false;
+        return !owners.isEmpty();
     }
 }
@@ -0,0 +1,39 @@
+package tools;
+
+/**
+ * Keeps the last lines of the command output in memory, they are exposed via
+ * JMX.
+ */
+class RingBufferOutput implements OutputSink {
+
+    private final String[] lines;
+    private long written;
+
+    RingBufferOutput(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive!");
+        }
+        lines = new String[capacity];
+    }
+
+    @Override
+    public synchronized void write(String line) {
+        lines[(int) (written++ % lines.length)] = line;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * The kept lines, oldest first.
+     */
+    synchronized String[] getLines() {
+        int count = (int) Math.min(written, lines.length);
+        String[] copy = new String[count];
+        for (int i = 0; i < count; i++) {
+            copy[i] = lines[(int) ((written - count + i) % lines.length)];
+        }
+        return copy;
+    }
+}
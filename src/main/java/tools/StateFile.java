@@ -0,0 +1,165 @@
+package tools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the TreeSnapshot on disk (--state-file), so the changes made while
+ * FileWatcher was not running can be reported at the next start. The file is
+ * a flat binary, read through a memory mapping:
+ * <pre>
+ * "FWS1" roots
+ * directoryCount { path entryCount { name flags mtime size } }
+ * </pre>
+ * Strings are an int length and UTF-8 bytes, flags is 1 for directories.
+ * The file is written to a temporary file and moved in place, so a crash
+ * leaves the previous state.
+ *
+ * It does not shorten the start: watch keys can not be saved, so the tree is
+ * walked and every file is recorded and compared anyway.
+ */
+class StateFile implements Runnable {
+
+    private static final int MAGIC = 0x46575331; // "FWS1"
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long SAVE_INTERVAL_SECONDS = 60;
+
+    @SuppressWarnings("NonConstantLogger")
+    private final Logger logger;
+    private final Path file;
+    private final String roots;
+    private final TreeSnapshot snapshot;
+
+    /**
+     * The roots (the watched directories, separated by the path separator)
+     * identify the tree of the state file.
+     */
+    StateFile(Factory factory, Path file, String roots, TreeSnapshot snapshot) {
+        logger = factory.createLogger(this.getClass());
+        this.file = file;
+        this.roots = roots;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Saves the snapshot periodically if it changed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                TimeUnit.SECONDS.sleep(SAVE_INTERVAL_SECONDS);
+                if (snapshot.isModified()) {
+                    save();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The snapshot of the previous run, null if there is none or it belongs
+     * to other roots.
+     */
+    TreeSnapshot load() {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC) {
+                logger.warning("Not a state file : " + file);
+                return null;
+            }
+            if (!readString(in).equals(roots)) {
+                logger.warning("State file " + file + " belongs to other directories.");
+                return null;
+            }
+            TreeSnapshot loaded = new TreeSnapshot();
+            int directoryCount = in.getInt();
+            for (int i = 0; i < directoryCount; i++) {
+                Path dir = file.getFileSystem().getPath(readString(in));
+                int entryCount = in.getInt();
+                Map<Path, TreeSnapshot.Entry> entries = new ConcurrentHashMap<>(entryCount * 4 / 3 + 1);
+                for (int j = 0; j < entryCount; j++) {
+                    Path name = file.getFileSystem().getPath(readString(in));
+                    boolean directory = in.get() == 1;
+                    long mtime = in.getLong();
+                    long size = in.getLong();
+                    entries.put(name, new TreeSnapshot.Entry(mtime, size, null, directory));
+                }
+                loaded.getDirectories().put(dir, entries);
+            }
+            return loaded;
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException
+                | NegativeArraySizeException ex) {
+            logger.log(Level.WARNING, "Could not read the state file " + file, ex);
+            return null;
+        }
+    }
+
+    synchronized void save() {
+        snapshot.clearModified();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+                out.writeInt(MAGIC);
+                writeString(out, roots);
+                // copied, the maps may change while they are written
+                List<Map.Entry<Path, Map<Path, TreeSnapshot.Entry>>> directories
+                        = new ArrayList<>(snapshot.getDirectories().entrySet());
+                out.writeInt(directories.size());
+                for (Map.Entry<Path, Map<Path, TreeSnapshot.Entry>> d : directories) {
+                    writeString(out, d.getKey().toString());
+                    List<Map.Entry<Path, TreeSnapshot.Entry>> entries = new ArrayList<>(d.getValue().entrySet());
+                    out.writeInt(entries.size());
+                    for (Map.Entry<Path, TreeSnapshot.Entry> e : entries) {
+                        TreeSnapshot.Entry entry = e.getValue();
+                        writeString(out, e.getKey().toString());
+                        out.writeByte(entry.directory ? 1 : 0);
+                        out.writeLong(entry.mtime);
+                        out.writeLong(entry.size);
+                    }
+                }
+            }
+            Files.move(tmp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not write the state file " + file, ex);
+        }
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    private static String readString(MappedByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,25 @@
+package tools;
+
+import java.io.PrintStream;
+
+/**
+ * Writes the command output to a stream: stdout or a file.
+ */
+class StreamOutput implements OutputSink {
+
+    private final PrintStream out;
+
+    StreamOutput(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(String line) {
+        out.println(line);
+    }
+
+    @Override
+    public void flush() {
+        out.flush();
+    }
+}
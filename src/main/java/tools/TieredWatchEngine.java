@@ -0,0 +1,310 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lazy registration (--lazy-depth): only the directories up to the given
+ * depth below a root get a native watch at once, the deeper ones are polled
+ * by a shallow polling engine (one stat of the directory per scan).
+ * A polled directory that changes is promoted to a native watch, a promoted
+ * directory without events for the cold time (--cold-after) is demoted to
+ * polling again, and so is the least recently active one when the promoted
+ * directories exceed the budget (--watch-budget). The native watches follow
+ * the directories in use instead of the size of the tree.
+ *
+ * The keys handed out are wrappers whose delegate (the native or the polling
+ * key) changes on promotion and demotion, so the Registry keeps its keys. Two
+ * threads forward the signalled keys of the WatchService and of the polling
+ * engine to one queue.
+ */
+class TieredWatchEngine implements WatchEngine, Runnable {
+
+    @SuppressWarnings("NonConstantLogger")
+    private final Logger logger;
+    private final Factory factory;
+    private final Metrics metrics;
+    private final NativeWatchEngine nativeEngine;
+    private final PollingWatchEngine pollingEngine;
+    private final int lazyDepth;
+    private final int budget;
+    private final long coldNanos;
+    private final List<Path> roots = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<WatchKey, TieredKey> byDelegate = new ConcurrentHashMap<>();
+    private final Set<TieredKey> promoted = Collections.newSetFromMap(
+            new ConcurrentHashMap<TieredKey, Boolean>());
+    private final BlockingQueue<TieredKey> signalled = new LinkedBlockingQueue<>();
+    private boolean started;
+
+    TieredWatchEngine(Factory factory, Metrics metrics, NativeWatchEngine nativeEngine,
+            PollingWatchEngine pollingEngine, int lazyDepth, int budget, long coldMillis) {
+        this.factory = factory;
+        logger = factory.createLogger(this.getClass());
+        this.metrics = metrics;
+        this.nativeEngine = nativeEngine;
+        this.pollingEngine = pollingEngine;
+        this.lazyDepth = lazyDepth;
+        this.budget = budget;
+        this.coldNanos = TimeUnit.MILLISECONDS.toNanos(coldMillis);
+    }
+
+    /**
+     * A watched root, the depth of a directory is counted from the innermost
+     * root containing it.
+     */
+    void addRoot(Path root) {
+        roots.add(root);
+    }
+
+    @Override
+    public WatchKey register(Path dir) throws IOException {
+        start();
+        boolean eager = depth(dir) <= lazyDepth;
+        WatchKey delegate = eager ? nativeEngine.register(dir) : pollingEngine.register(dir);
+        TieredKey key = byDelegate.get(delegate);
+        if (key == null) {
+            key = new TieredKey(dir, delegate, eager);
+            byDelegate.put(delegate, key);
+        }
+        return key;
+    }
+
+    @Override
+    public WatchKey take() throws InterruptedException {
+        return signalled.take();
+    }
+
+    @Override
+    public WatchKey poll() {
+        return signalled.poll();
+    }
+
+    /**
+     * Demotes the cold promoted directories, four times per cold time.
+     */
+    @Override
+    public void run() {
+        long tickMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(coldNanos) / 4);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                TimeUnit.MILLISECONDS.sleep(tickMillis);
+                demoteCold(System.nanoTime());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A key of the WatchService or of the polling engine was signalled: its
+     * wrapper is queued, a polled directory is promoted.
+     */
+    void onSignal(WatchKey delegate) {
+        TieredKey key = byDelegate.get(delegate);
+        if (key == null) {
+            // cancelled, or replaced by a promotion or demotion
+            return;
+        }
+        key.lastActive = System.nanoTime();
+        if (!key.isNative()) {
+            promote(key);
+        }
+        signalled.add(key);
+    }
+
+    void demoteCold(long now) {
+        for (TieredKey key : promoted) {
+            if (now - key.lastActive > coldNanos) {
+                demote(key);
+            }
+        }
+    }
+
+    int getPromotedCount() {
+        return promoted.size();
+    }
+
+    private synchronized void promote(TieredKey key) {
+        try {
+            WatchKey nativeKey = nativeEngine.register(key.dir);
+            byDelegate.put(nativeKey, key);
+            PollingWatchEngine.PollingKey polled = (PollingWatchEngine.PollingKey) key.swap(nativeKey);
+            // a last comparison finds the changes made before the native watch
+            polled.diff(System.nanoTime());
+            polled.cancel();
+            promoted.add(key);
+            metrics.keyPromoted();
+            if (budget > 0 && promoted.size() > budget) {
+                demoteLeastActive();
+            }
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Could not promote " + key.dir, ex);
+        }
+    }
+
+    private synchronized void demote(TieredKey key) {
+        try {
+            WatchKey polled = pollingEngine.register(key.dir);
+            byDelegate.put(polled, key);
+            key.swap(polled).cancel();
+            promoted.remove(key);
+            metrics.keyDemoted();
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Could not demote " + key.dir, ex);
+        }
+    }
+
+    private void demoteLeastActive() {
+        TieredKey coldest = null;
+        for (TieredKey key : promoted) {
+            if (coldest == null || key.lastActive - coldest.lastActive < 0) {
+                coldest = key;
+            }
+        }
+        if (coldest != null) {
+            demote(coldest);
+        }
+    }
+
+    private int depth(Path dir) {
+        Path owner = null;
+        for (Path root : roots) {
+            if (dir.startsWith(root) && (owner == null || root.getNameCount() > owner.getNameCount())) {
+                owner = root;
+            }
+        }
+        return owner == null ? 0 : dir.getNameCount() - owner.getNameCount();
+    }
+
+    private synchronized void start() {
+        if (!started) {
+            started = true;
+            factory.createDaemonThread(new Forwarder(nativeEngine), "native-forwarder").start();
+            factory.createDaemonThread(new Forwarder(pollingEngine), "poll-forwarder").start();
+            factory.createDaemonThread(this, "tiering").start();
+        }
+    }
+
+    /**
+     * Moves the signalled keys of an engine to the queue.
+     */
+    private class Forwarder implements Runnable {
+
+        private final WatchEngine engine;
+
+        Forwarder(WatchEngine engine) {
+            this.engine = engine;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    onSignal(engine.take());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The key of a directory, backed by a native or a polling key. The events
+     * the previous delegate still holds after a swap are delivered with the
+     * events of the new one.
+     */
+    class TieredKey implements WatchKey {
+
+        private final Path dir;
+        // the directories up to the lazy depth always have a native watch
+        private final boolean eager;
+        private WatchKey delegate;
+        private WatchKey retired;
+        private final List<WatchEvent<?>> carried = new ArrayList<>();
+        private volatile long lastActive = System.nanoTime();
+
+        TieredKey(Path dir, WatchKey delegate, boolean eager) {
+            this.dir = dir;
+            this.delegate = delegate;
+            this.eager = eager;
+        }
+
+        synchronized boolean isNative() {
+            return !(delegate instanceof PollingWatchEngine.PollingKey);
+        }
+
+        boolean isEager() {
+            return eager;
+        }
+
+        /**
+         * Replaces the delegate, returns the previous one.
+         */
+        private synchronized WatchKey swap(WatchKey next) {
+            WatchKey previous = delegate;
+            if (retired != null) {
+                carried.addAll(retired.pollEvents());
+            }
+            retired = previous;
+            delegate = next;
+            byDelegate.remove(previous);
+            return previous;
+        }
+
+        @Override
+        public synchronized boolean isValid() {
+            return delegate.isValid();
+        }
+
+        @Override
+        public synchronized List<WatchEvent<?>> pollEvents() {
+            if (retired == null) {
+                return delegate.pollEvents();
+            }
+            List<WatchEvent<?>> events = new ArrayList<>(carried);
+            events.addAll(retired.pollEvents());
+            events.addAll(delegate.pollEvents());
+            carried.clear();
+            retired = null;
+            return events;
+        }
+
+        @Override
+        public synchronized boolean reset() {
+            if (delegate.reset()) {
+                return true;
+            }
+            // the directory is gone, the Registry drops the key
+            byDelegate.remove(delegate);
+            promoted.remove(this);
+            return false;
+        }
+
+        @Override
+        public synchronized void cancel() {
+            byDelegate.remove(delegate);
+            promoted.remove(this);
+            delegate.cancel();
+        }
+
+        @Override
+        public Watchable watchable() {
+            return dir;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metadata (mtime, size, file key) of the entries of the watched directories.
+ * It is recorded while the directories are registered and kept up to date by
+ * the events. After an OVERFLOW the directory of the key is listed again and
+ * compared with the snapshot, so only the real differences are reported.
+ *
+ * A WatchKey only reports the entries of its own directory, and an overflow
+ * of the kernel queue is signalled on every key. So a rescan covers the
+ * entries of one directory: subdirectories are rescanned by their own keys,
+ * new subdirectories are registered (and recorded) by the Registry.
+ */
+class TreeSnapshot {
+
+    private final Map<Path, Map<Path, Entry>> directories = new ConcurrentHashMap<>();
+    private volatile boolean modified;
+
+    void recordDirectory(Path dir, BasicFileAttributes attrs) {
+        if (!directories.containsKey(dir)) {
+            directories.put(dir, new ConcurrentHashMap<Path, Entry>());
+        }
+        if (attrs != null) {
+            record(dir, attrs);
+        }
+    }
+
+    void recordFile(Path file, BasicFileAttributes attrs) {
+        record(file, attrs);
+    }
+
+    /**
+     * Applies an event to the snapshot. Created and modified entries are read
+     * again, deleted entries are dropped with their subtree.
+     */
+    void update(WatchEvent.Kind<?> kind, Path path) {
+        modified = true;
+        if (kind == ENTRY_DELETE) {
+            remove(path);
+            return;
+        }
+        try {
+            record(path, Files.readAttributes(path, BasicFileAttributes.class, NOFOLLOW_LINKS));
+        } catch (IOException ex) {
+            // already gone, its delete event is on the way
+            remove(path);
+        }
+    }
+
+    void remove(Path path) {
+        modified = true;
+        Map<Path, Entry> parent = getParentEntries(path);
+        if (parent != null) {
+            Entry entry = parent.remove(path.getFileName());
+            if (entry != null && entry.directory) {
+                dropSubtree(path);
+            }
+        }
+    }
+
+    /**
+     * Lists the directory again and returns the differences to the snapshot
+     * as events. The snapshot of the directory is replaced by the listing.
+     */
+    List<ChangeEvent> rescan(Path dir, String canonicalDir) throws IOException {
+        List<ChangeEvent> changes = new ArrayList<>();
+        Map<Path, Entry> previous = directories.get(dir);
+        Map<Path, Entry> current = new ConcurrentHashMap<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path child : ds) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(child, BasicFileAttributes.class, NOFOLLOW_LINKS);
+                } catch (NoSuchFileException ex) {
+                    continue;
+                }
+                Entry entry = new Entry(attrs);
+                Path name = child.getFileName();
+                current.put(name, entry);
+                Entry old = previous == null ? null : previous.get(name);
+                if (old == null) {
+                    changes.add(new ChangeEvent(ENTRY_CREATE, child, canonicalDir));
+                } else if (old.directory != entry.directory) {
+                    if (old.directory) {
+                        dropSubtree(child);
+                    }
+                    changes.add(new ChangeEvent(ENTRY_MODIFY, child, canonicalDir));
+                } else if (!entry.directory && entry.differs(old)) {
+                    changes.add(new ChangeEvent(ENTRY_MODIFY, child, canonicalDir));
+                }
+            }
+        }
+        if (previous != null) {
+            for (Map.Entry<Path, Entry> e : previous.entrySet()) {
+                if (!current.containsKey(e.getKey())) {
+                    Path child = dir.resolve(e.getKey());
+                    if (e.getValue().directory) {
+                        dropSubtree(child);
+                    }
+                    changes.add(new ChangeEvent(ENTRY_DELETE, child, canonicalDir));
+                }
+            }
+        }
+        directories.put(dir, current);
+        modified = true;
+        return changes;
+    }
+
+    /**
+     * The differences of this snapshot to an earlier one of the same tree,
+     * as events: new and changed files, entries gone from directories that
+     * still exist. The content of a deleted directory is not reported, like
+     * the WatchService does not.
+     */
+    List<ChangeEvent> diff(TreeSnapshot earlier) {
+        List<ChangeEvent> changes = new ArrayList<>();
+        for (Map.Entry<Path, Map<Path, Entry>> d : directories.entrySet()) {
+            Path dir = d.getKey();
+            Map<Path, Entry> previous = earlier.directories.get(dir);
+            for (Map.Entry<Path, Entry> e : d.getValue().entrySet()) {
+                Entry old = previous == null ? null : previous.get(e.getKey());
+                if (old == null) {
+                    changes.add(new ChangeEvent(ENTRY_CREATE, dir.resolve(e.getKey())));
+                } else if (old.directory != e.getValue().directory
+                        || (!old.directory && e.getValue().differs(old))) {
+                    changes.add(new ChangeEvent(ENTRY_MODIFY, dir.resolve(e.getKey())));
+                }
+            }
+            if (previous != null) {
+                for (Path name : previous.keySet()) {
+                    if (!d.getValue().containsKey(name)) {
+                        changes.add(new ChangeEvent(ENTRY_DELETE, dir.resolve(name)));
+                    }
+                }
+            }
+        }
+        return changes;
+    }
+
+    Entry get(Path path) {
+        Map<Path, Entry> parent = getParentEntries(path);
+        return parent == null ? null : parent.get(path.getFileName());
+    }
+
+    boolean containsDirectory(Path dir) {
+        return directories.containsKey(dir);
+    }
+
+    int getDirectoryCount() {
+        return directories.size();
+    }
+
+    Map<Path, Map<Path, Entry>> getDirectories() {
+        return directories;
+    }
+
+    /**
+     * Whether the snapshot changed since the flag was last cleared.
+     */
+    boolean isModified() {
+        return modified;
+    }
+
+    void clearModified() {
+        modified = false;
+    }
+
+    private void record(Path path, BasicFileAttributes attrs) {
+        Map<Path, Entry> parent = getParentEntries(path);
+        if (parent != null) {
+            parent.put(path.getFileName(), new Entry(attrs));
+        }
+    }
+
+    private Map<Path, Entry> getParentEntries(Path path) {
+        Path parent = path.getParent();
+        return parent == null ? null : directories.get(parent);
+    }
+
+    private void dropSubtree(Path dir) {
+        Map<Path, Entry> entries = directories.remove(dir);
+        if (entries != null) {
+            for (Map.Entry<Path, Entry> e : entries.entrySet()) {
+                if (e.getValue().directory) {
+                    dropSubtree(dir.resolve(e.getKey()));
+                }
+            }
+        }
+    }
+
+    static class Entry {
+
+        final long mtime;
+        final long size;
+        final Object fileKey;
+        final boolean directory;
+
+        Entry(BasicFileAttributes attrs) {
+            this(attrs.lastModifiedTime().toMillis(), attrs.size(), attrs.fileKey(), attrs.isDirectory());
+        }
+
+        Entry(long mtime, long size, Object fileKey, boolean directory) {
+            this.mtime = mtime;
+            this.size = size;
+            this.fileKey = fileKey;
+            this.directory = directory;
+        }
+
+        /**
+         * The file keys are compared if both are known: they are not kept in
+         * the state file.
+         */
+        boolean differs(Entry other) {
+            return mtime != other.mtime || size != other.size
+                    || (fileKey != null && other.fileKey != null && !fileKey.equals(other.fileKey));
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+
+/**
+ * The source of the change events: registers directories and hands out the
+ * signalled keys, like a WatchService. The native engine is the WatchService
+ * of the file system, the polling engine (--engine poll) lists the
+ * directories itself for file systems whose changes the WatchService does not
+ * see.
+ */
+interface WatchEngine {
+
+    /**
+     * Registers a directory for CREATE, DELETE and MODIFY events; a directory
+     * registered again keeps its key.
+     */
+    WatchKey register(Path dir) throws IOException;
+
+    WatchKey take() throws InterruptedException;
+
+    WatchKey poll();
+}
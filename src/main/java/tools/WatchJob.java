@@ -0,0 +1,208 @@
+package tools;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A watched directory tree with its own command, filter and debounce
+ * settings. The jobs of a FileWatcher share the WatchService, the Registry,
+ * the execution pool and the output; the Registry routes every key to the
+ * jobs of all the roots containing its directory.
+ */
+class WatchJob {
+
+    private String pathToWatch;
+    private Path root;
+    private String commandToExecute;
+    private String handlerName;
+    private boolean worker;
+    private long workerTimeoutMillis = WorkerHandler.DEFAULT_TIMEOUT_MILLIS;
+    private String[] skipDirectories;
+    private final List<String> includes = new LinkedList<>();
+    private final List<String> excludes = new LinkedList<>();
+    private long debounceMillis;
+    private boolean contentAware;
+    private int fingerprintCache = ContentFilter.DEFAULT_CAPACITY;
+    private boolean batch;
+    private boolean manifestOnStdin = true;
+    private PathFilter filter;
+    private EventSink sink;
+
+    /**
+     * Resolves the root and builds the filter and the pipeline of the job.
+     */
+    void setup(Factory factory, Metrics metrics, Path root, ExecutionPool pool) {
+        this.root = root;
+        filter = createFilter();
+        sink = createPipeline(factory, metrics, pool);
+    }
+
+    /**
+     * Compiles the --include and --exclude rules; the --skipDirectories
+     * names are exclude rules. Null if there are no rules.
+     */
+    PathFilter createFilter() {
+        List<String> allExcludes = new LinkedList<>(excludes);
+        if (skipDirectories != null) {
+            allExcludes.addAll(Arrays.asList(skipDirectories));
+        }
+        if (includes.isEmpty() && allExcludes.isEmpty()) {
+            return null;
+        }
+        return new PathFilter(root, includes, allExcludes);
+    }
+
+    /**
+     * The --handler of the job, else the handler of the -c command: a
+     * long-lived worker with --worker, a process per change otherwise. Null
+     * if the job has neither.
+     */
+    ChangeHandler createHandler(Factory factory, Metrics metrics) {
+        if (handlerName != null) {
+            return factory.createHandler(handlerName);
+        }
+        if (commandToExecute == null) {
+            return null;
+        }
+        return worker
+                ? new WorkerHandler(factory, metrics, commandToExecute, workerTimeoutMillis)
+                : new CommandHandler(factory, commandToExecute, batch, manifestOnStdin);
+    }
+
+    /**
+     * Builds the stages between the watch loop and the handler: the events
+     * are coalesced by the debouncer (if a quiet window is set), MODIFY
+     * events without a content change are dropped (if --content-aware is
+     * set) and the rest is passed to the command dispatcher, which runs the
+     * handler on the pool (if --max-parallel is set) or inline. In batch mode
+     * the handler runs once per burst instead of once per event.
+     */
+    EventSink createPipeline(Factory factory, Metrics metrics, ExecutionPool pool) {
+        ChangeHandler handler = createHandler(factory, metrics);
+        if (handler == null) {
+            return null;
+        }
+        EventSink pipeline = batch
+                ? new BatchDispatcher(factory, metrics, handler, root, pool)
+                : new CommandDispatcher(factory, metrics, handler, root, pool);
+        if (contentAware) {
+            pipeline = new ContentFilter(factory, pipeline, metrics, fingerprintCache);
+        }
+        if (debounceMillis > 0) {
+            pipeline = new Debouncer(factory, pipeline, metrics, debounceMillis);
+        }
+        return pipeline;
+    }
+
+    /**
+     * Whether an event of the path runs the command of the job.
+     */
+    boolean accepts(Path path) {
+        return filter == null || filter.accepts(path);
+    }
+
+    boolean isExcluded(Path path) {
+        return filter != null && filter.isExcluded(path);
+    }
+
+    String getPathToWatch() {
+        return pathToWatch;
+    }
+
+    void setPathToWatch(String pathToWatch) {
+        this.pathToWatch = pathToWatch;
+    }
+
+    Path getRoot() {
+        return root;
+    }
+
+    String getCommandToExecute() {
+        return commandToExecute;
+    }
+
+    void setCommandToExecute(String commandToExecute) {
+        this.commandToExecute = commandToExecute;
+    }
+
+    String getHandlerName() {
+        return handlerName;
+    }
+
+    void setHandlerName(String handlerName) {
+        this.handlerName = handlerName;
+    }
+
+    boolean isWorker() {
+        return worker;
+    }
+
+    void setWorker(boolean worker) {
+        this.worker = worker;
+    }
+
+    void setWorkerTimeoutMillis(long workerTimeoutMillis) {
+        this.workerTimeoutMillis = workerTimeoutMillis;
+    }
+
+    /**
+     * Whether the job has a command or a handler.
+     */
+    boolean hasHandler() {
+        return commandToExecute != null || handlerName != null;
+    }
+
+    void setSkipDirectories(String[] skipDirectories) {
+        this.skipDirectories = skipDirectories;
+    }
+
+    void addInclude(String rule) {
+        includes.add(rule);
+    }
+
+    void addExclude(String rule) {
+        excludes.add(rule);
+    }
+
+    long getDebounceMillis() {
+        return debounceMillis;
+    }
+
+    void setDebounceMillis(long debounceMillis) {
+        this.debounceMillis = debounceMillis;
+    }
+
+    void setContentAware(boolean contentAware) {
+        this.contentAware = contentAware;
+    }
+
+    void setFingerprintCache(int fingerprintCache) {
+        this.fingerprintCache = fingerprintCache;
+    }
+
+    boolean isBatch() {
+        return batch;
+    }
+
+    void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
+    boolean isManifestOnStdin() {
+        return manifestOnStdin;
+    }
+
+    void setManifestOnStdin(boolean manifestOnStdin) {
+        this.manifestOnStdin = manifestOnStdin;
+    }
+
+    PathFilter getFilter() {
+        return filter;
+    }
+
+    EventSink getSink() {
+        return sink;
+    }
+}
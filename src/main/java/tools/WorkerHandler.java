@@ -0,0 +1,220 @@
+package tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the -c command once as a long-lived worker (--worker) instead of once
+ * per change. Every change (or batch) is a JSON line on the stdin of the
+ * worker:
+ * <pre>
+ * {"id":7,"root":"/src","changes":[{"kind":"ENTRY_MODIFY","path":"/src/A.java"}]}
+ * </pre>
+ * and the worker answers with a line <code>{"id":7,"ok":true}</code> when it
+ * is done (<code>"ok":false</code> if it failed). Other lines on its stdout
+ * and its stderr go to the output. A worker that exits is started again and
+ * gets the request once more; a worker that does not answer within the
+ * timeout is killed. One request is in flight at a time. The worker is
+ * destroyed when FileWatcher exits.
+ */
+class WorkerHandler implements ChangeHandler {
+
+    static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+    private static final Pattern ACK = Pattern.compile("^\\s*\\{\\s*\"id\"\\s*:\\s*(\\d+)(.*)\\}\\s*$");
+    private static final Pattern FAILED = Pattern.compile("\"ok\"\\s*:\\s*false");
+    // the queue entry of an exited worker
+    private static final Object EXITED = new Object();
+
+    @SuppressWarnings("NonConstantLogger")
+    private final Logger logger;
+    private final Factory factory;
+    private final Metrics metrics;
+    private final String command;
+    private final long timeoutMillis;
+    // read by the shutdown hook without the lock
+    private volatile Process process;
+    private Writer stdin;
+    private BlockingQueue<Object> acks;
+    private long nextId;
+
+    WorkerHandler(Factory factory, Metrics metrics, String command, long timeoutMillis) {
+        this.factory = factory;
+        logger = factory.createLogger(this.getClass());
+        this.metrics = metrics;
+        this.command = command;
+        this.timeoutMillis = timeoutMillis;
+        factory.addShutdownHook(new Runnable() {
+            @Override
+            public void run() {
+                Process worker = process;
+                if (worker != null) {
+                    worker.destroy();
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized boolean handle(Path root, List<ChangeEvent> changes) throws Exception {
+        long id = ++nextId;
+        String request = toJson(id, root, changes);
+        // a second attempt if the worker exited while handling the request
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (process == null) {
+                start(root);
+            }
+            try {
+                stdin.write(request);
+                stdin.write('\n');
+                stdin.flush();
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Worker closed its input : " + command, ex);
+                restart();
+                continue;
+            }
+            Object ack = awaitAck(id);
+            if (ack == null) {
+                logger.warning("Worker did not answer in " + timeoutMillis + "ms, killing it : " + command);
+                stop();
+                return false;
+            }
+            if (ack != EXITED) {
+                return !FAILED.matcher((String) ack).find();
+            }
+            restart();
+        }
+        return false;
+    }
+
+    /**
+     * The answer to the request, EXITED if the worker exited, null on
+     * timeout. Answers to earlier (timed out) requests are skipped.
+     */
+    private Object awaitAck(long id) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            Object line = acks.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (line == null || line == EXITED) {
+                return line;
+            }
+            Matcher m = ACK.matcher((String) line);
+            if (m.matches() && Long.parseLong(m.group(1)) == id) {
+                return m.group(2);
+            }
+        }
+    }
+
+    private void start(Path root) throws IOException {
+        process = factory.startWorker(command, root);
+        stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        acks = new LinkedBlockingQueue<>();
+        factory.getOutputPump().drainErrors(process, command);
+        factory.createDaemonThread(new Reader(process, acks), "worker-reader").start();
+        logger.info("Worker started : " + command);
+    }
+
+    private void restart() {
+        logger.warning("Worker exited, starting it again : " + command);
+        metrics.workerRestarted();
+        stop();
+    }
+
+    synchronized void stop() {
+        if (process != null) {
+            process.destroy();
+            process = null;
+        }
+    }
+
+    String getCommand() {
+        return command;
+    }
+
+    long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    @Override
+    public String toString() {
+        return command;
+    }
+
+    static String toJson(long id, Path root, List<ChangeEvent> changes) {
+        StringBuilder json = new StringBuilder(128);
+        json.append("{\"id\":").append(id).append(",\"root\":");
+        quote(json, root.toString());
+        json.append(",\"changes\":[");
+        for (int i = 0; i < changes.size(); i++) {
+            ChangeEvent change = changes.get(i);
+            json.append(i == 0 ? "{\"kind\":" : ",{\"kind\":");
+            quote(json, change.getKind().name());
+            json.append(",\"path\":");
+            quote(json, change.getPath().toString());
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    static void quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * Reads the stdout of a worker: answers are queued, other lines go to the
+     * output.
+     */
+    private class Reader implements Runnable {
+
+        private final Process worker;
+        private final BlockingQueue<Object> queue;
+
+        Reader(Process worker, BlockingQueue<Object> queue) {
+            this.worker = worker;
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(worker.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (ACK.matcher(line).matches()) {
+                        queue.add(line);
+                    } else {
+                        factory.getOutputPump().offer(line);
+                    }
+                }
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Output of the worker closed : " + command, ex);
+            } finally {
+                queue.add(EXITED);
+            }
+        }
+    }
+}
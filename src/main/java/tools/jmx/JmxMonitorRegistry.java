@@ -1,6 +1,7 @@
 package tools.jmx;
 
 import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.management.InstanceAlreadyExistsException;
@@ -10,20 +11,31 @@ import javax.management.MalformedObjectNameException;
 import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
 import tools.Factory;
+import tools.Metrics;
 import tools.Registry;
 
-public class JmxMonitorRegistry implements JmxMonitorRegistryMBean {
+/**
+ * The attributes of FileWatcher over JMX. The event rates are exponentially
+ * weighted moving averages over about a minute, updated by {@link #run()}
+ * every few seconds; reading an attribute changes nothing.
+ */
+public class JmxMonitorRegistry implements JmxMonitorRegistryMBean, Runnable {
 
+    static final long TICK_SECONDS = 5;
+    static final long WINDOW_SECONDS = 60;
     private static volatile int COUNTER;
-    
+
     @SuppressWarnings("NonConstantLogger")
     private final Logger logger;
 
     private final Registry registry;
+    private final Metrics metrics;
+    private final Rate[] rates = {new Rate(), new Rate(), new Rate()};
 
-    public JmxMonitorRegistry(Factory factory, Registry registry) {
+    public JmxMonitorRegistry(Factory factory, Registry registry, Metrics metrics) {
         logger = factory.createLogger(this.getClass());
         this.registry = registry;
+        this.metrics = metrics;
     }
 
     public void register() {
@@ -35,8 +47,253 @@ public class JmxMonitorRegistry implements JmxMonitorRegistryMBean {
         }
     }
 
+    /**
+     * Updates the rates every tick.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                TimeUnit.SECONDS.sleep(TICK_SECONDS);
+                tick(System.nanoTime());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void tick(long nanos) {
+        for (int kind = 0; kind < rates.length; kind++) {
+            rates[kind].update(metrics.getEvents(kind), nanos);
+        }
+    }
+
     @Override
     public int getRegistrySize() {
         return registry.getKeys().size();
     }
+
+    @Override
+    public long getRegisteredDirectories() {
+        return registry.getRegisteredDirectories();
+    }
+
+    @Override
+    public long getRegistrationMillis() {
+        return registry.getRegistrationMillis();
+    }
+
+    @Override
+    public boolean isRegistering() {
+        return registry.isRegistering();
+    }
+
+    @Override
+    public double getRegistrationP99Millis() {
+        return registry.getRegistrationLatency().getPercentileMillis(99);
+    }
+
+    @Override
+    public long getCreatedEvents() {
+        return metrics.getEvents(Metrics.CREATE);
+    }
+
+    @Override
+    public long getModifiedEvents() {
+        return metrics.getEvents(Metrics.MODIFY);
+    }
+
+    @Override
+    public long getDeletedEvents() {
+        return metrics.getEvents(Metrics.DELETE);
+    }
+
+    @Override
+    public double getCreatedPerSecond() {
+        return perSecond(Metrics.CREATE);
+    }
+
+    @Override
+    public double getModifiedPerSecond() {
+        return perSecond(Metrics.MODIFY);
+    }
+
+    @Override
+    public double getDeletedPerSecond() {
+        return perSecond(Metrics.DELETE);
+    }
+
+    @Override
+    public long getSuppressedEvents() {
+        return metrics.getSuppressedEvents();
+    }
+
+    @Override
+    public long getFilteredEvents() {
+        return metrics.getFilteredEvents();
+    }
+
+    @Override
+    public long getUnchangedEvents() {
+        return metrics.getUnchangedEvents();
+    }
+
+    @Override
+    public double getContentSuppressionRatio() {
+        long checks = metrics.getContentChecks();
+        return checks == 0 ? 0 : (double) metrics.getUnchangedEvents() / checks;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return metrics.getQueueDepth();
+    }
+
+    @Override
+    public long getDroppedTasks() {
+        return metrics.getDroppedTasks();
+    }
+
+    @Override
+    public long getCoalescedTasks() {
+        return metrics.getCoalescedTasks();
+    }
+
+    @Override
+    public long getOverflows() {
+        return metrics.getOverflows();
+    }
+
+    @Override
+    public long getRecoveredEvents() {
+        return metrics.getRecoveredEvents();
+    }
+
+    @Override
+    public long getCancelledKeys() {
+        return metrics.getCancelledKeys();
+    }
+
+    @Override
+    public long getMovedDirectories() {
+        return metrics.getMovedDirectories();
+    }
+
+    @Override
+    public long getWorkerRestarts() {
+        return metrics.getWorkerRestarts();
+    }
+
+    @Override
+    public long getPromotedKeys() {
+        return metrics.getPromotedKeys();
+    }
+
+    @Override
+    public long getDemotedKeys() {
+        return metrics.getDemotedKeys();
+    }
+
+    @Override
+    public int getSubscribers() {
+        return metrics.getSubscribers();
+    }
+
+    @Override
+    public long getDroppedStreamEvents() {
+        return metrics.getDroppedStreamEvents();
+    }
+
+    @Override
+    public long getSlowSubscribers() {
+        return metrics.getSlowSubscribers();
+    }
+
+    @Override
+    public long getCommandLaunches() {
+        return metrics.getCommandLaunches();
+    }
+
+    @Override
+    public long getCommandFailures() {
+        return metrics.getCommandFailures();
+    }
+
+    @Override
+    public double getStartLatencyP50Millis() {
+        return metrics.getStartLatency().getPercentileMillis(50);
+    }
+
+    @Override
+    public double getStartLatencyP99Millis() {
+        return metrics.getStartLatency().getPercentileMillis(99);
+    }
+
+    @Override
+    public double getStartLatencyP999Millis() {
+        return metrics.getStartLatency().getPercentileMillis(99.9);
+    }
+
+    @Override
+    public double getCompletionLatencyP50Millis() {
+        return metrics.getCompletionLatency().getPercentileMillis(50);
+    }
+
+    @Override
+    public double getCompletionLatencyP99Millis() {
+        return metrics.getCompletionLatency().getPercentileMillis(99);
+    }
+
+    @Override
+    public double getCompletionLatencyP999Millis() {
+        return metrics.getCompletionLatency().getPercentileMillis(99.9);
+    }
+
+    @Override
+    public long getDroppedOutputLines() {
+        return metrics.getDroppedOutputLines();
+    }
+
+    @Override
+    public long getDroppedLogRecords() {
+        return metrics.getDroppedLogRecords();
+    }
+
+    @Override
+    public String[] getRecentOutput() {
+        return metrics.getRecentOutput();
+    }
+
+    private double perSecond(int kind) {
+        return rates[kind].get();
+    }
+
+    /**
+     * Events per second, averaged with a weight decaying over the window.
+     */
+    static class Rate {
+
+        private long lastCount;
+        private long lastNanos = System.nanoTime();
+        private volatile double rate;
+
+        /**
+         * Adds the events counted since the previous update.
+         */
+        synchronized void update(long count, long nanos) {
+            double seconds = (nanos - lastNanos) / 1e9;
+            if (seconds <= 0) {
+                return;
+            }
+            double instant = (count - lastCount) / seconds;
+            double alpha = 1 - Math.exp(-seconds / WINDOW_SECONDS);
+            rate += alpha * (instant - rate);
+            lastCount = count;
+            lastNanos = nanos;
+        }
+
+        double get() {
+            return rate;
+        }
+    }
 }
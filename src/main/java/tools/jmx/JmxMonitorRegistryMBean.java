@@ -3,4 +3,80 @@ package tools.jmx;
 public interface JmxMonitorRegistryMBean {
 
     int getRegistrySize();
+
+    long getRegisteredDirectories();
+
+    long getRegistrationMillis();
+
+    boolean isRegistering();
+
+    double getRegistrationP99Millis();
+
+    long getCreatedEvents();
+
+    long getModifiedEvents();
+
+    long getDeletedEvents();
+
+    double getCreatedPerSecond();
+
+    double getModifiedPerSecond();
+
+    double getDeletedPerSecond();
+
+    long getSuppressedEvents();
+
+    long getFilteredEvents();
+
+    long getUnchangedEvents();
+
+    double getContentSuppressionRatio();
+
+    int getQueueDepth();
+
+    long getDroppedTasks();
+
+    long getCoalescedTasks();
+
+    long getOverflows();
+
+    long getRecoveredEvents();
+
+    long getCancelledKeys();
+
+    long getMovedDirectories();
+
+    long getWorkerRestarts();
+
+    long getPromotedKeys();
+
+    long getDemotedKeys();
+
+    int getSubscribers();
+
+    long getDroppedStreamEvents();
+
+    long getSlowSubscribers();
+
+    long getCommandLaunches();
+
+    long getCommandFailures();
+
+    double getStartLatencyP50Millis();
+
+    double getStartLatencyP99Millis();
+
+    double getStartLatencyP999Millis();
+
+    double getCompletionLatencyP50Millis();
+
+    double getCompletionLatencyP99Millis();
+
+    double getCompletionLatencyP999Millis();
+
+    long getDroppedOutputLines();
+
+    long getDroppedLogRecords();
+
+    String[] getRecentOutput();
 }
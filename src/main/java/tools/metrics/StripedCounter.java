@@ -0,0 +1,49 @@
+package tools.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for the hot path. The increments are spread over cache line
+ * padded stripes chosen by the thread id, so concurrent writers do not
+ * contend on a single value. Incrementing neither allocates nor locks; reading
+ * sums the stripes.
+ */
+public class StripedCounter {
+
+    // 8 longs = 64 bytes, one stripe per cache line
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(index(), delta);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    private static int index() {
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+    }
+
+    /**
+     * The power of two above twice the number of processors, at most 64.
+     */
+    static int stripes(int processors) {
+        int stripes = 1;
+        while (stripes < processors * 2 && stripes < 64) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+}
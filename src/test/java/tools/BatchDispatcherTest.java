@@ -0,0 +1,46 @@
+package tools;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.util.List;
+import java.util.logging.Logger;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import org.mockito.ArgumentCaptor;
+import tools.ExecutionPool.Backpressure;
+
+public class BatchDispatcherTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFlushShouldMergeIntoTheQueuedBatch() throws Exception {
+        Factory factory = mock(Factory.class);
+        when(factory.createLogger(any(Class.class))).thenReturn(mock(Logger.class));
+        when(factory.createDaemonThread(any(Runnable.class), anyString())).thenReturn(mock(Thread.class));
+        Metrics metrics = new Metrics();
+        ChangeHandler handler = mock(ChangeHandler.class);
+        doReturn(true).when(handler).handle(any(Path.class), anyListOf(ChangeEvent.class));
+        ExecutionPool pool = new ExecutionPool(factory, metrics, 1, 10, Backpressure.BLOCK);
+        Path root = Paths.get("/w");
+        BatchDispatcher instance = new BatchDispatcher(factory, metrics, handler, root, pool);
+
+        instance.accept(new ChangeEvent(ENTRY_CREATE, root.resolve("A.java")));
+        instance.flush();
+        instance.accept(new ChangeEvent(ENTRY_MODIFY, root.resolve("A.java")));
+        instance.accept(new ChangeEvent(ENTRY_MODIFY, root.resolve("B.java")));
+        instance.flush();
+
+        assertEquals(1, pool.size());
+        pool.poll().run();
+        ArgumentCaptor<List> batch = ArgumentCaptor.forClass(List.class);
+        verify(handler).handle(eq(root), batch.capture());
+        List<ChangeEvent> events = batch.getValue();
+        assertEquals(2, events.size());
+        assertEquals(ENTRY_CREATE, events.get(0).getKind());
+        assertEquals(root.resolve("B.java"), events.get(1).getPath());
+        assertEquals(1, metrics.getCoalescedTasks());
+    }
+}
@@ -0,0 +1,92 @@
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ContentFilterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Metrics metrics;
+    List<ChangeEvent> accepted;
+    ContentFilter instance;
+
+    @Before
+    public void setUp() {
+        metrics = new Metrics();
+        accepted = new ArrayList<>();
+        instance = new ContentFilter(new Factory(), new EventSink() {
+            @Override
+            public void accept(ChangeEvent event) {
+                accepted.add(event);
+            }
+
+            @Override
+            public void flush() {
+            }
+        }, metrics, 2);
+    }
+
+    @Test
+    public void testTouchWithoutContentChangeShouldBeDropped() throws IOException {
+        Path file = write("a.txt", "one", 10000);
+        instance.accept(new ChangeEvent(ENTRY_CREATE, file));
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        instance.accept(new ChangeEvent(ENTRY_MODIFY, file));
+
+        write("a.txt", "two", 0);
+        instance.accept(new ChangeEvent(ENTRY_MODIFY, file));
+
+        assertEquals(2, accepted.size());
+        assertEquals(ENTRY_CREATE, accepted.get(0).getKind());
+        assertEquals(ENTRY_MODIFY, accepted.get(1).getKind());
+        assertEquals(1, metrics.getUnchangedEvents());
+    }
+
+    @Test
+    public void testDeleteShouldForgetTheFingerprint() throws IOException {
+        Path file = write("a.txt", "one", 10000);
+        instance.accept(new ChangeEvent(ENTRY_MODIFY, file));
+        assertEquals(1, instance.size());
+
+        instance.accept(new ChangeEvent(ENTRY_DELETE, file));
+
+        assertEquals(0, instance.size());
+        assertEquals(2, accepted.size());
+    }
+
+    @Test
+    public void testCacheShouldEvictTheLeastRecentlyUsed() throws IOException {
+        Path a = write("a.txt", "a", 10000);
+        Path b = write("b.txt", "b", 10000);
+        Path c = write("c.txt", "c", 10000);
+        assertTrue(instance.changed(a));
+        assertTrue(instance.changed(b));
+        assertFalse(instance.changed(a));
+        assertTrue(instance.changed(c));
+
+        assertEquals(2, instance.size());
+        assertFalse(instance.changed(a));
+        assertTrue(instance.changed(b));
+    }
+
+    private Path write(String name, String content, long ageMillis) throws IOException {
+        Path file = new File(folder.getRoot(), name).toPath();
+        Files.write(file, content.getBytes("UTF-8"));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - ageMillis));
+        return file;
+    }
+}
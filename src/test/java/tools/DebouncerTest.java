@@ -0,0 +1,94 @@
+package tools;
+
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class DebouncerTest {
+
+    static final long WINDOW = TimeUnit.MILLISECONDS.toNanos(200);
+
+    // unit to be tested
+    Debouncer instance;
+    // mock objects
+    Factory factory;
+    EventSink downstream;
+    Metrics metrics;
+    Path file;
+    Path other;
+
+    @Before
+    public void setUp() {
+        factory = mock(Factory.class);
+        downstream = mock(EventSink.class);
+        file = mock(Path.class);
+        other = mock(Path.class);
+        metrics = new Metrics();
+        when(factory.createLogger(any(Class.class))).thenReturn(mock(Logger.class));
+
+        instance = new Debouncer(factory, downstream, metrics, 200);
+    }
+
+    @Test
+    public void testRepeatedEventsShouldBeCoalesced() {
+        instance.accept(new ChangeEvent(ENTRY_MODIFY, file), 0);
+        instance.accept(new ChangeEvent(ENTRY_MODIFY, file), 10);
+        instance.accept(new ChangeEvent(ENTRY_MODIFY, file), 20);
+
+        List<ChangeEvent> settled = instance.drainSettled(20 + WINDOW);
+
+        assertEquals(1, settled.size());
+        assertEquals(file, settled.get(0).getPath());
+        assertEquals(2, metrics.getSuppressedEvents());
+    }
+
+    @Test
+    public void testEventShouldWaitForTheQuietWindow() {
+        instance.accept(new ChangeEvent(ENTRY_MODIFY, file), 0);
+        instance.accept(new ChangeEvent(ENTRY_MODIFY, file), WINDOW - 1);
+
+        assertTrue(instance.drainSettled(WINDOW).isEmpty());
+        assertEquals(1, instance.drainSettled(2 * WINDOW).size());
+        assertEquals(0, instance.getPendingCount());
+    }
+
+    @Test
+    public void testOnlySettledPathsShouldBeDrained() {
+        instance.accept(new ChangeEvent(ENTRY_MODIFY, file), 0);
+        instance.accept(new ChangeEvent(ENTRY_MODIFY, other), 100);
+
+        List<ChangeEvent> settled = instance.drainSettled(WINDOW);
+
+        assertEquals(1, settled.size());
+        assertEquals(file, settled.get(0).getPath());
+        assertEquals(1, instance.getPendingCount());
+    }
+
+    @Test
+    public void testMergeShouldKeepCreate() {
+        ChangeEvent merged = Debouncer.merge(new ChangeEvent(ENTRY_CREATE, file),
+                new ChangeEvent(ENTRY_MODIFY, file));
+        assertEquals(ENTRY_CREATE, merged.getKind());
+    }
+
+    @Test
+    public void testMergeShouldTurnDeleteAndCreateIntoModify() {
+        ChangeEvent merged = Debouncer.merge(new ChangeEvent(ENTRY_DELETE, file),
+                new ChangeEvent(ENTRY_CREATE, file));
+        assertEquals(ENTRY_MODIFY, merged.getKind());
+    }
+
+    @Test
+    public void testMergeShouldReportDeleteAfterModify() {
+        ChangeEvent merged = Debouncer.merge(new ChangeEvent(ENTRY_MODIFY, file),
+                new ChangeEvent(ENTRY_DELETE, file));
+        assertEquals(ENTRY_DELETE, merged.getKind());
+    }
+}
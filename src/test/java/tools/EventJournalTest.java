@@ -0,0 +1,176 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.util.List;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class EventJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static final String FIRST_PATHS = "events-00000000000000000001.paths";
+
+    Factory factory = new Factory();
+    Path dir;
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot().toPath().resolve("journal");
+    }
+
+    @Test
+    public void testReadSinceShouldReturnTheLaterChanges() throws IOException {
+        EventJournal instance = open(4, 8);
+        instance.append(ENTRY_CREATE, Paths.get("/a/A.java"), 100);
+        instance.append(ENTRY_MODIFY, Paths.get("/a/A.java"), 200);
+        instance.append(ENTRY_DELETE, Paths.get("/a/B.java"), 300);
+
+        List<EventJournal.Entry> entries = instance.readSince(1, 10);
+
+        assertEquals(2, entries.size());
+        assertEquals(2, entries.get(0).sequence);
+        assertEquals(ENTRY_MODIFY, entries.get(0).kind);
+        assertEquals("/a/A.java", entries.get(0).path);
+        assertEquals(ENTRY_DELETE, entries.get(1).kind);
+        assertEquals(300, entries.get(1).timeMillis);
+        assertEquals(1, instance.readSince(0, 1).size());
+        assertEquals(2, instance.getPathCount());
+    }
+
+    @Test
+    public void testOpenShouldContinueTheSequence() throws IOException {
+        EventJournal first = open(4, 8);
+        for (int i = 0; i < 6; i++) {
+            first.append(ENTRY_MODIFY, Paths.get("/a/" + i), i);
+        }
+        first.close();
+
+        EventJournal second = open(4, 8);
+        assertEquals(6, second.getLastSequence());
+        assertEquals(7, second.append(ENTRY_CREATE, Paths.get("/a/1"), 7));
+
+        List<EventJournal.Entry> entries = second.readSince(0, 100);
+        assertEquals(7, entries.size());
+        assertEquals("/a/5", entries.get(5).path);
+        // the paths of the current segment: /a/4, /a/5 and /a/1
+        assertEquals(3, second.getPathCount());
+    }
+
+    @Test
+    public void testAppendShouldDropTheOldestSegments() throws IOException {
+        EventJournal instance = open(4, 2);
+        for (int i = 0; i < 10; i++) {
+            instance.append(ENTRY_MODIFY, Paths.get("/a/" + i), i);
+        }
+
+        assertEquals(2, instance.getSegmentCount());
+        List<EventJournal.Entry> entries = instance.readSince(0, 100);
+        assertEquals(6, entries.size());
+        assertEquals(5, entries.get(0).sequence);
+        assertEquals(10, entries.get(5).sequence);
+        assertEquals("/a/4", entries.get(0).path);
+    }
+
+    @Test
+    public void testThePathsShouldBeDroppedWithTheirSegment() throws IOException {
+        EventJournal instance = open(4, 2);
+        for (int i = 0; i < 100; i++) {
+            instance.append(ENTRY_MODIFY, Paths.get("/a/" + i), i);
+        }
+
+        assertEquals(4, instance.getPathCount());
+        assertFalse(Files.exists(dir.resolve(FIRST_PATHS)));
+        int files = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.paths")) {
+            for (Path file : ds) {
+                files++;
+            }
+        }
+        assertEquals(2, files);
+        assertEquals("/a/96", instance.readSince(96, 1).get(0).path);
+    }
+
+    @Test
+    public void testReadSinceTimeShouldSkipTheOlderChanges() throws IOException {
+        EventJournal instance = open(2, 8);
+        for (int i = 1; i <= 7; i++) {
+            instance.append(ENTRY_MODIFY, Paths.get("/a/" + i), i * 1000);
+        }
+
+        List<EventJournal.Entry> entries = instance.readSinceTime(3500, 2);
+
+        assertEquals(2, entries.size());
+        assertEquals(4, entries.get(0).sequence);
+        assertEquals(5, entries.get(1).sequence);
+    }
+
+    @Test
+    public void testOpenShouldIgnoreATruncatedPath() throws IOException {
+        EventJournal first = open(4, 8);
+        first.append(ENTRY_MODIFY, Paths.get("/a/A.java"), 1);
+        first.close();
+        Files.write(dir.resolve(FIRST_PATHS), new byte[]{0, 0, 0, 9, 'x'},
+                java.nio.file.StandardOpenOption.APPEND);
+
+        EventJournal second = open(4, 8);
+        second.append(ENTRY_MODIFY, Paths.get("/a/B.java"), 2);
+
+        assertEquals(2, second.getPathCount());
+        assertEquals("/a/B.java", second.readSince(1, 10).get(0).path);
+        second.close();
+        assertEquals(2, open(4, 8).getPathCount());
+    }
+
+    @Test
+    public void testReadOnlyShouldNotRepairTheWritersJournal() throws IOException {
+        EventJournal writer = open(4, 8);
+        writer.append(ENTRY_MODIFY, Paths.get("/a/A.java"), 1);
+        writer.force();
+        // a path the writer is appending
+        Files.write(dir.resolve(FIRST_PATHS), new byte[]{0, 0, 0, 9, 'x'},
+                java.nio.file.StandardOpenOption.APPEND);
+        long size = Files.size(dir.resolve(FIRST_PATHS));
+
+        EventJournal reader = new EventJournal(factory, dir, 4, 8);
+        reader.openReadOnly();
+
+        assertEquals(size, Files.size(dir.resolve(FIRST_PATHS)));
+        assertEquals("/a/A.java", reader.readSince(0, 10).get(0).path);
+        try {
+            reader.append(ENTRY_MODIFY, Paths.get("/a/B.java"), 2);
+            fail("appended read only");
+        } catch (IllegalStateException expected) {
+        }
+        reader.close();
+    }
+
+    @Test
+    public void testReadOnlyShouldSeeTheLaterChanges() throws IOException {
+        EventJournal writer = open(4, 8);
+        writer.append(ENTRY_MODIFY, Paths.get("/a/A.java"), 1);
+        EventJournal reader = new EventJournal(factory, dir, 4, 8);
+        reader.openReadOnly();
+
+        writer.append(ENTRY_CREATE, Paths.get("/a/B.java"), 2);
+
+        List<EventJournal.Entry> entries = reader.readSince(0, 10);
+        assertEquals(2, entries.size());
+        assertEquals("/a/B.java", entries.get(1).path);
+    }
+
+    private EventJournal open(int segmentRecords, int segments) throws IOException {
+        EventJournal journal = new EventJournal(factory, dir, segmentRecords, segments);
+        journal.open();
+        return journal;
+    }
+}
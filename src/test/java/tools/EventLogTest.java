@@ -0,0 +1,113 @@
+package tools;
+
+import java.nio.file.Paths;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class EventLogTest {
+
+    Logger logger;
+    RecordingHandler handler;
+    Metrics metrics;
+
+    @Before
+    public void setUp() {
+        logger = Logger.getAnonymousLogger();
+        logger.setUseParentHandlers(false);
+        handler = new RecordingHandler();
+        logger.addHandler(handler);
+        metrics = new Metrics();
+    }
+
+    @Test
+    public void testInfoShouldFormatOnlyWhenLogged() {
+        EventLog instance = new EventLog(logger);
+        Object argument = new Object() {
+            @Override
+            public String toString() {
+                fail("formatted below the level");
+                return null;
+            }
+        };
+
+        logger.setLevel(Level.SEVERE);
+        instance.info("{0}: {1}", ENTRY_MODIFY, argument);
+        assertTrue(handler.messages.isEmpty());
+        assertFalse(instance.isEnabled());
+
+        logger.setLevel(Level.INFO);
+        instance.info("{0}: {1}", ENTRY_MODIFY, Paths.get("/w/A.java"));
+        assertEquals("ENTRY_MODIFY: /w/A.java", handler.messages.get(0));
+    }
+
+    @Test
+    public void testRingShouldLogOnTheConsumerThread() throws InterruptedException {
+        EventLog.Ring ring = new EventLog.Ring(metrics, 16);
+        EventLog instance = new EventLog(logger, ring);
+        Thread consumer = new Thread(ring, "event-log");
+        consumer.setDaemon(true);
+        consumer.start();
+
+        for (int i = 0; i < 10; i++) {
+            instance.info("{0} (replayed {1,number,#}): {2}", ENTRY_MODIFY, 1000L + i, "/w/A.java");
+        }
+        for (int i = 0; i < 100 && handler.messages.size() < 10; i++) {
+            Thread.sleep(20);
+        }
+        consumer.interrupt();
+
+        assertEquals(10, handler.messages.size());
+        assertEquals("ENTRY_MODIFY (replayed 1009): /w/A.java", handler.messages.get(9));
+        assertEquals(consumer, handler.threads.get(0));
+    }
+
+    @Test
+    public void testFullRingShouldDropAndCount() {
+        EventLog.Ring ring = new EventLog.Ring(metrics, 4);
+        EventLog instance = new EventLog(logger, ring);
+
+        for (int i = 0; i < 6; i++) {
+            instance.info("line {0}", i);
+        }
+        assertEquals(4, ring.getCapacity());
+        assertEquals(2, metrics.getDroppedLogRecords());
+
+        assertTrue(ring.drain());
+        assertEquals(4, handler.messages.size());
+        assertEquals("line 3", handler.messages.get(3));
+        assertFalse(ring.drain());
+
+        instance.info("line {0}", 6);
+        assertTrue(ring.drain());
+        assertEquals("line 6", handler.messages.get(4));
+    }
+
+    static class RecordingHandler extends Handler {
+
+        final List<String> messages = new CopyOnWriteArrayList<>();
+        final List<Thread> threads = new CopyOnWriteArrayList<>();
+        private final SimpleFormatter formatter = new SimpleFormatter();
+
+        @Override
+        public void publish(LogRecord record) {
+            messages.add(formatter.formatMessage(record));
+            threads.add(Thread.currentThread());
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package tools;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.util.Arrays;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class EventServerTest {
+
+    Metrics metrics;
+    EventServer instance;
+
+    @Before
+    public void setUp() throws IOException {
+        metrics = new Metrics();
+        instance = new EventServer(new Factory(), metrics, 0, 16);
+        instance.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        instance.close();
+    }
+
+    @Test
+    public void testEventStreamShouldDeliverTheAcceptedChanges() throws Exception {
+        try (Socket socket = connect("GET /events?include=*.java HTTP/1.1\r\nHost: localhost\r\n\r\n")) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("HTTP/1.1 200 OK", in.readLine());
+            awaitSubscribers(1);
+
+            instance.publish(new ChangeEvent(ENTRY_MODIFY, Paths.get("/src/README")));
+            instance.publish(new ChangeEvent(ENTRY_CREATE, Paths.get("/src/A.java")));
+
+            String line;
+            do {
+                line = in.readLine();
+            } while (!line.startsWith("data:"));
+            assertEquals("data: {\"kind\":\"ENTRY_CREATE\",\"path\":\"/src/A.java\"}", line);
+        }
+        awaitSubscribers(0);
+    }
+
+    @Test
+    public void testWebSocketShouldDeliverTextFrames() throws Exception {
+        try (Socket socket = connect("GET /events HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\n"
+                + "Connection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n")) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String head = readHead(in);
+            assertTrue(head.startsWith("HTTP/1.1 101 "));
+            assertTrue(head.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+            awaitSubscribers(1);
+
+            instance.publish(new ChangeEvent(ENTRY_MODIFY, Paths.get("/src/A.java")));
+
+            assertEquals(0x81, in.readUnsignedByte());
+            byte[] payload = new byte[in.readUnsignedByte()];
+            in.readFully(payload);
+            assertEquals("{\"kind\":\"ENTRY_MODIFY\",\"path\":\"/src/A.java\"}",
+                    new String(payload, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testUnknownPathShouldBeRejected() throws Exception {
+        try (Socket socket = connect("GET /other HTTP/1.1\r\n\r\n")) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("HTTP/1.1 404 Not Found", in.readLine());
+        }
+        assertTrue(instance.getSubscribers().isEmpty());
+    }
+
+    @Test
+    public void testSlowSubscriberShouldBeDisconnected() throws Exception {
+        try (Socket socket = connect("GET /events?buffer=4&policy=disconnect HTTP/1.1\r\n\r\n")) {
+            awaitSubscribers(1);
+            char[] name = new char[4000];
+            Arrays.fill(name, 'a');
+            // nobody reads: the socket buffers fill up, then the queue
+            for (int i = 0; i < 100000 && metrics.getSlowSubscribers() == 0; i++) {
+                instance.publish(new ChangeEvent(ENTRY_MODIFY, Paths.get("/src", new String(name))));
+            }
+            assertEquals(1, metrics.getSlowSubscribers());
+            awaitSubscribers(0);
+        }
+    }
+
+    @Test
+    public void testBase64ShouldPad() {
+        assertEquals("", EventServer.base64(new byte[0]));
+        assertEquals("Zg==", EventServer.base64("f".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("Zm8=", EventServer.base64("fo".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("Zm9vYmFy", EventServer.base64("foobar".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private Socket connect(String request) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), instance.getPort());
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        return socket;
+    }
+
+    private static String readHead(DataInputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (head.indexOf("\r\n\r\n") < 0) {
+            head.append((char) in.readUnsignedByte());
+        }
+        return head.toString();
+    }
+
+    private void awaitSubscribers(int count) throws InterruptedException {
+        for (int i = 0; i < 250 && metrics.getSubscribers() != count; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, metrics.getSubscribers());
+    }
+}
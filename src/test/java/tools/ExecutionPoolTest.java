@@ -0,0 +1,213 @@
+package tools;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.junit.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import tools.ExecutionPool.Backpressure;
+import tools.ExecutionPool.SingleFlight;
+
+public class ExecutionPoolTest {
+
+    // mock objects
+    Factory factory;
+    Thread thread;
+    Metrics metrics;
+    Runnable first;
+    Runnable second;
+    Runnable third;
+
+    @Before
+    public void setUp() {
+        factory = mock(Factory.class);
+        thread = mock(Thread.class);
+        metrics = new Metrics();
+        first = mock(Runnable.class);
+        second = mock(Runnable.class);
+        third = mock(Runnable.class);
+        when(factory.createLogger(any(Class.class))).thenReturn(mock(Logger.class));
+        when(factory.createDaemonThread(any(Runnable.class), anyString())).thenReturn(thread);
+    }
+
+    @Test
+    public void testSubmitShouldStartTheWorkersOnce() {
+        ExecutionPool instance = new ExecutionPool(factory, metrics, 3, 10, Backpressure.BLOCK);
+
+        instance.submit("a", first);
+        instance.submit("b", second);
+
+        verify(factory, times(3)).createDaemonThread(eq(instance), anyString());
+        verify(thread, times(3)).start();
+        assertEquals(2, instance.size());
+        assertEquals(2, metrics.getQueueDepth());
+    }
+
+    @Test
+    public void testDropOldestShouldDropTheHeadOfAFullQueue() {
+        ExecutionPool instance = new ExecutionPool(factory, metrics, 1, 2, Backpressure.DROP_OLDEST);
+
+        assertTrue(instance.submit("a", first));
+        assertTrue(instance.submit("b", second));
+        assertFalse(instance.submit("c", third));
+
+        assertEquals(second, instance.poll());
+        assertEquals(third, instance.poll());
+        assertNull(instance.poll());
+        assertEquals(1, metrics.getDroppedTasks());
+    }
+
+    @Test
+    public void testCoalesceShouldReplaceTheQueuedTaskOfTheSameKey() {
+        ExecutionPool instance = new ExecutionPool(factory, metrics, 1, 2, Backpressure.COALESCE);
+
+        instance.submit("a", first);
+        instance.submit("b", second);
+        instance.submit("a", third);
+
+        assertEquals(third, instance.poll());
+        assertEquals(second, instance.poll());
+        assertEquals(1, metrics.getCoalescedTasks());
+    }
+
+    @Test
+    public void testBlockShouldGiveUpWhenInterrupted() {
+        ExecutionPool instance = new ExecutionPool(factory, metrics, 1, 1, Backpressure.BLOCK);
+        instance.submit("a", first);
+
+        Thread.currentThread().interrupt();
+        assertFalse(instance.submit("b", second));
+        assertTrue(Thread.interrupted());
+        assertEquals(1, metrics.getDroppedTasks());
+    }
+
+    @Test
+    public void testSingleFlightShouldRunOneFollowUpAfterTheRunningTask() throws InterruptedException {
+        ExecutionPool instance = new ExecutionPool(factory, metrics, 2, 10, Backpressure.BLOCK);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch otherKeyDone = new CountDownLatch(1);
+        final CountDownLatch followUpDone = new CountDownLatch(1);
+        final AtomicInteger followUps = new AtomicInteger();
+        instance.submit("a", new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Runnable followUp = new Runnable() {
+            @Override
+            public void run() {
+                followUps.incrementAndGet();
+                followUpDone.countDown();
+            }
+        };
+        startWorker(instance);
+        startWorker(instance);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        instance.submit("a", followUp);
+        instance.submit("a", followUp);
+        instance.submit("a", followUp);
+        instance.submit("b", new Runnable() {
+            @Override
+            public void run() {
+                otherKeyDone.countDown();
+            }
+        });
+
+        // the other key runs on the free worker, "a" waits
+        assertTrue(otherKeyDone.await(5, TimeUnit.SECONDS));
+        assertEquals(0, followUps.get());
+        assertEquals(1, instance.size());
+        release.countDown();
+        assertTrue(followUpDone.await(5, TimeUnit.SECONDS));
+        assertEquals(1, followUps.get());
+        assertEquals(2, metrics.getCoalescedTasks());
+    }
+
+    @Test
+    public void testSingleFlightShouldFoldIntoTheQueuedTaskWhenBlocking() {
+        ExecutionPool instance = new ExecutionPool(factory, metrics, 1, 10, Backpressure.BLOCK);
+
+        instance.submit("a", first);
+        instance.submit("a", second);
+
+        assertEquals(1, instance.size());
+        assertEquals(second, instance.poll());
+        assertEquals(1, metrics.getCoalescedTasks());
+    }
+
+    @Test
+    public void testCoarseSingleFlightShouldKeepATaskPerFile() {
+        ExecutionPool instance = new ExecutionPool(factory, metrics, 1, 10, Backpressure.BLOCK, SingleFlight.JOB);
+        Path root = Paths.get("root");
+        Path a = root.resolve("a");
+        Path b = root.resolve("b");
+        Merging early = new Merging("a1");
+
+        instance.submit(a, instance.keyOf(a, root), early);
+        instance.submit(b, instance.keyOf(b, root), second);
+        instance.submit(a, instance.keyOf(a, root), new Merging("a2"));
+
+        assertEquals(2, instance.size());
+        assertEquals("a1+a2", ((Merging) instance.poll()).name);
+        assertEquals(second, instance.poll());
+    }
+
+    @Test
+    public void testKeyOf() {
+        Path root = Paths.get("root");
+        Path file = root.resolve("dir").resolve("file");
+        ExecutionPool instance = new ExecutionPool(factory, metrics, 1, 1, Backpressure.BLOCK, SingleFlight.DIRECTORY);
+        assertEquals(root.resolve("dir"), instance.keyOf(file, root));
+        instance = new ExecutionPool(factory, metrics, 1, 1, Backpressure.BLOCK, SingleFlight.JOB);
+        assertEquals(root, instance.keyOf(file, root));
+        instance = new ExecutionPool(factory, metrics, 1, 1, Backpressure.BLOCK);
+        assertEquals(file, instance.keyOf(file, root));
+    }
+
+    @Test
+    public void testParseBackpressure() {
+        assertEquals(Backpressure.DROP_OLDEST, Backpressure.parse("drop-oldest"));
+        assertEquals(Backpressure.COALESCE, Backpressure.parse("coalesce"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPoolSizeShouldBePositive() {
+        new ExecutionPool(factory, metrics, 0, 1, Backpressure.BLOCK);
+    }
+
+    static class Merging implements ExecutionPool.Mergeable {
+
+        final String name;
+
+        Merging(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public Runnable merge(Runnable later) {
+            return new Merging(name + "+" + ((Merging) later).name);
+        }
+    }
+
+    private static void startWorker(ExecutionPool pool) {
+        Thread worker = new Thread(pool);
+        worker.setDaemon(true);
+        worker.start();
+    }
+}
@@ -3,13 +3,16 @@ package tools;
 import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.logging.Logger;
 import org.junit.*;
@@ -18,9 +21,14 @@ import java.util.Set;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 import static org.mockito.Matchers.any;
+import org.mockito.ArgumentCaptor;
+import org.junit.rules.TemporaryFolder;
 
 public class FileWatcherTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     // unit to be tested
     FileWatcher instance;
     // mock objects
@@ -49,9 +57,9 @@ public class FileWatcherTest {
         when(factory.getFileSystem()).thenReturn(fileSystem);
         when(factory.createThread(any(Runnable.class))).thenReturn(thread);
         when(factory.createRegistry(watcher)).thenReturn(registry);
-        doNothing().when(factory).execute(any(String.class), any(Path.class),
-                any(Path.class));
-        doNothing().when(factory).registerMBeans(registry);
+        doReturn(0).when(factory).execute(any(String.class), any(Path.class),
+                any(ChangeEvent.class));
+        doNothing().when(factory).registerMBeans(eq(registry), any(Metrics.class));
 
         instance = new FileWatcher(factory);
     }
@@ -214,6 +222,95 @@ public class FileWatcherTest {
         assertEquals("command", instance.getCommandToExecute());
     }
 
+    @Test
+    public void testSetupByCommandLineArgumentsShouldParseDebounce() {
+        String[] args = {"-c", "command", "--debounce", "200ms"};
+        when(fileSystem.getPath(".")).thenReturn(mock(Path.class));
+
+        instance.setupByCommandLineArguments(args);
+
+        assertEquals(200, instance.getDebounceMillis());
+        assertTrue(instance.getSink() instanceof Debouncer);
+    }
+
+    @Test
+    public void testSetupByCommandLineArgumentsWithoutDebounceShouldDispatchDirectly() {
+        String[] args = {"-c", "command"};
+        when(fileSystem.getPath(".")).thenReturn(mock(Path.class));
+
+        instance.setupByCommandLineArguments(args);
+
+        assertTrue(instance.getSink() instanceof CommandDispatcher);
+    }
+
+    @Test
+    public void testSetupByCommandLineArgumentsShouldCreateAnExecutionPool() {
+        String[] args = {"-c", "command", "--max-parallel", "4", "--queue-size", "16",
+            "--backpressure", "drop-oldest", "--single-flight", "directory"};
+        when(fileSystem.getPath(".")).thenReturn(mock(Path.class));
+
+        instance.setupByCommandLineArguments(args);
+
+        ExecutionPool pool = ((CommandDispatcher) instance.getSink()).getPool();
+        assertEquals(4, pool.getMaxParallel());
+        assertEquals(16, pool.getCapacity());
+        assertEquals(ExecutionPool.Backpressure.DROP_OLDEST, pool.getBackpressure());
+        assertEquals(ExecutionPool.SingleFlight.DIRECTORY, pool.getSingleFlight());
+    }
+
+    @Test
+    public void testSetupByCommandLineArgumentsShouldParseBatch() {
+        String[] args = {"-c", "command", "--batch", "--manifest", "file"};
+        when(fileSystem.getPath(".")).thenReturn(mock(Path.class));
+
+        instance.setupByCommandLineArguments(args);
+
+        assertTrue(instance.isBatch());
+        assertFalse(instance.isManifestOnStdin());
+        assertTrue(instance.getSink() instanceof BatchDispatcher);
+    }
+
+    @Test
+    public void testRunShouldExecuteOneBatchPerDrain() throws Exception {
+        WatchKey key = mock(WatchKey.class);
+        WatchKey other = mock(WatchKey.class);
+        WatchEvent<Path> we = mock(WatchEvent.class);
+        when(we.kind()).thenReturn(ENTRY_MODIFY);
+        when(we.context()).thenReturn(mock(Path.class));
+        List<WatchEvent<?>> eventList = new ArrayList<>();
+        eventList.add(we);
+        doReturn(eventList).when(key).pollEvents();
+        doReturn(eventList).when(other).pollEvents();
+        Path dir = mock(Path.class);
+        Path otherDir = mock(Path.class);
+        when(registry.get(key)).thenReturn(dir);
+        when(registry.get(other)).thenReturn(otherDir);
+        when(dir.resolve(any(Path.class))).thenReturn(dir);
+        when(otherDir.resolve(any(Path.class))).thenReturn(otherDir);
+        when(registry.registerWatchers(any(Path.class))).thenReturn(true);
+        when(registry.checkHasADirectory(any(WatchKey.class))).thenReturn(true);
+        when(key.reset()).thenReturn(true);
+        when(other.reset()).thenReturn(true);
+        when(watcher.take()).thenReturn(key).thenThrow(InterruptedException.class);
+        when(watcher.poll()).thenReturn(other).thenReturn(null);
+        when(fileSystem.getPath(".")).thenReturn(dir);
+        instance.setupByCommandLineArguments(new String[]{"-c", "command", "--batch"});
+
+        instance.run();
+
+        ArgumentCaptor<List> batch = ArgumentCaptor.forClass(List.class);
+        verify(factory).executeBatch(eq("command"), eq(dir), batch.capture(), eq(true));
+        assertEquals(2, batch.getValue().size());
+    }
+
+    @Test
+    public void testParseMillis() {
+        assertEquals(200, FileWatcher.parseMillis("200ms"));
+        assertEquals(2000, FileWatcher.parseMillis("2s"));
+        assertEquals(150, FileWatcher.parseMillis("150"));
+        assertEquals(600000, FileWatcher.parseMillis("10m"));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testSetupByCommandLineArgumentsShouldThrowExceptionIfInvalid() {
         String[] args = {"-d", "testDir", "-c_invalid"};
@@ -262,6 +359,48 @@ public class FileWatcherTest {
         verify(dir, never()).resolve(any(Path.class));
     }
 
+    @Test
+    public void testHandleEventsShouldDispatchRecoveredEventsOnOverflow() throws IOException {
+        WatchKey key = mock(WatchKey.class);
+        List<WatchEvent<?>> eventList = new ArrayList<>();
+        WatchEvent<Object> we = mock(WatchEvent.class);
+        when(we.kind()).thenReturn(OVERFLOW);
+        eventList.add(we);
+        doReturn(eventList).when(key).pollEvents();
+        Path dir = mock(Path.class);
+        when(registry.get(key)).thenReturn(dir);
+        when(fileSystem.getPath(eq("."))).thenReturn(dir);
+        Path lost = mock(Path.class);
+        List<ChangeEvent> recovered = new ArrayList<>();
+        recovered.add(new ChangeEvent(ENTRY_MODIFY, lost));
+        when(registry.rescan(key)).thenReturn(recovered);
+
+        instance.setupByCommandLineArguments(new String[]{"-c", "command"});
+        instance.handleEvents(key);
+
+        ArgumentCaptor<ChangeEvent> event = ArgumentCaptor.forClass(ChangeEvent.class);
+        verify(factory).execute(eq("command"), eq(dir), event.capture());
+        assertEquals(lost, event.getValue().getPath());
+        assertEquals(1, instance.getMetrics().getOverflows());
+        assertEquals(1, instance.getMetrics().getRecoveredEvents());
+    }
+
+    @Test
+    public void testSetupByCommandLineArgumentsShouldSetTheSnapshot() {
+        when(fileSystem.getPath(".")).thenReturn(mock(Path.class));
+
+        instance.setupByCommandLineArguments(new String[]{});
+        assertFalse(instance.isRescanOnOverflow());
+        verify(registry).setSnapshot(null);
+
+        instance.setupByCommandLineArguments(new String[]{"--overflow", "ignore"});
+        assertFalse(instance.isRescanOnOverflow());
+        verify(registry, times(2)).setSnapshot(null);
+
+        instance.setupByCommandLineArguments(new String[]{"--overflow", "rescan"});
+        verify(registry).setSnapshot(isA(TreeSnapshot.class));
+    }
+
     @Test
     public void testHandleEventsShouldRegisterWatchersOnADirectoryCreateEvent() {
         WatchKey key = mock(WatchKey.class);
@@ -298,9 +437,288 @@ public class FileWatcherTest {
 
         String[] args = {"-c", "command"};
 
+        when(registry.getCanonicalPath(key)).thenReturn("/canonical/dir");
+
         instance.setupByCommandLineArguments(args);
         instance.handleEvents(key);
 
-        verify(factory).execute(eq("command"), eq(dir), eq(dir));
+        ArgumentCaptor<ChangeEvent> event = ArgumentCaptor.forClass(ChangeEvent.class);
+        verify(factory).execute(eq("command"), eq(dir), event.capture());
+        assertEquals(dir, event.getValue().getPath());
+        assertEquals(ENTRY_MODIFY, event.getValue().getKind());
+        assertEquals("/canonical/dir", event.getValue().getDirectory());
+    }
+
+    @Test
+    public void testHandleEventsShouldDropExcludedEvents() throws IOException {
+        Path dir = Paths.get("/work");
+        WatchKey key = mock(WatchKey.class);
+        List<WatchEvent<?>> eventList = new ArrayList<>();
+        for (String name : new String[]{"A.class", "A.java", "README"}) {
+            WatchEvent<Path> we = mock(WatchEvent.class);
+            when(we.kind()).thenReturn(ENTRY_MODIFY);
+            when(we.context()).thenReturn(Paths.get(name));
+            eventList.add(we);
+        }
+        doReturn(eventList).when(key).pollEvents();
+        when(registry.get(key)).thenReturn(dir);
+        when(fileSystem.getPath(eq("/work"))).thenReturn(dir);
+
+        instance.setupByCommandLineArguments(new String[]{"-d", "/work", "-c", "command",
+            "--include", "*.java", "--include", "*.class", "--exclude", "*.class",
+            "--skipDirectories", "target"});
+        instance.handleEvents(key);
+
+        verify(registry).setJobs(instance.getJobs());
+        assertTrue(instance.getFilter().isExcluded(dir.resolve("target")));
+        ArgumentCaptor<ChangeEvent> event = ArgumentCaptor.forClass(ChangeEvent.class);
+        verify(factory).execute(eq("command"), eq(dir), event.capture());
+        assertEquals(dir.resolve("A.java"), event.getValue().getPath());
+        assertEquals(2, instance.getMetrics().getFilteredEvents());
+    }
+
+    @Test
+    public void testReplayShouldDispatchTheJournalledChanges() throws IOException {
+        Path dir = Paths.get("/work");
+        Path journalDir = folder.getRoot().toPath().resolve("journal");
+        WatchKey key = mock(WatchKey.class);
+        List<WatchEvent<?>> eventList = new ArrayList<>();
+        eventList.add(event(ENTRY_MODIFY, "A.java"));
+        eventList.add(event(ENTRY_CREATE, "B.java"));
+        doReturn(eventList).when(key).pollEvents();
+        when(registry.get(key)).thenReturn(dir);
+        when(fileSystem.getPath(eq("/work"))).thenReturn(dir);
+        when(fileSystem.getPath(eq(journalDir.toString()))).thenReturn(journalDir);
+        when(fileSystem.getPath(eq(dir.resolve("B.java").toString()))).thenReturn(dir.resolve("B.java"));
+
+        instance.setupByCommandLineArguments(new String[]{"-d", "/work", "-c", "command",
+            "--journal", journalDir.toString(), "--replay-since", "1"});
+        instance.handleEvents(key);
+        instance.replay();
+
+        assertEquals(2, instance.getJournal().getLastSequence());
+        ArgumentCaptor<ChangeEvent> event = ArgumentCaptor.forClass(ChangeEvent.class);
+        verify(factory, times(3)).execute(eq("command"), eq(dir), event.capture());
+        assertEquals(dir.resolve("B.java"), event.getValue().getPath());
+        assertEquals(ENTRY_CREATE, event.getValue().getKind());
+    }
+
+    @Test
+    public void testSetupByCommandLineArgumentsShouldListenForSubscribers() throws IOException {
+        when(fileSystem.getPath(".")).thenReturn(mock(Path.class));
+
+        instance.setupByCommandLineArguments(new String[]{"-c", "command", "--serve", "0"});
+
+        assertTrue(instance.getServer().getPort() > 0);
+        instance.getServer().close();
+    }
+
+    @Test
+    public void testSetupByCommandLineArgumentsShouldBufferTheEventLog() {
+        when(fileSystem.getPath(".")).thenReturn(mock(Path.class));
+
+        instance.setupByCommandLineArguments(new String[]{"-c", "command", "--log-buffer", "64"});
+
+        assertEquals(64, instance.getEventLog().getRing().getCapacity());
+        verify(registry).setEventLog(any(EventLog.class));
+    }
+
+    @Test
+    public void testParseTimeShouldAcceptDatesAndMillis() throws Exception {
+        assertEquals(1500, FileWatcher.parseTime("1500"));
+        assertEquals(new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse("2024-05-01 12:30:00").getTime(),
+                FileWatcher.parseTime("2024-05-01T12:30:00"));
+    }
+
+    @Test
+    public void testSetupShouldCreateAJobPerDirectory() {
+        Path a = Paths.get("/a");
+        Path b = Paths.get("/b");
+        when(fileSystem.getPath("/a")).thenReturn(a);
+        when(fileSystem.getPath("/b")).thenReturn(b);
+
+        instance.setupByCommandLineArguments(new String[]{"-d", "/a", "-c", "make",
+            "--debounce", "1s", "-d", "/b", "-c", "ant", "--batch", "--max-parallel", "2"});
+
+        List<WatchJob> jobs = instance.getJobs();
+        assertEquals(2, jobs.size());
+        assertEquals(a, jobs.get(0).getRoot());
+        assertEquals("make", jobs.get(0).getCommandToExecute());
+        assertTrue(jobs.get(0).getSink() instanceof Debouncer);
+        assertEquals(b, jobs.get(1).getRoot());
+        assertEquals("ant", jobs.get(1).getCommandToExecute());
+        assertTrue(jobs.get(1).getSink() instanceof BatchDispatcher);
+        verify(registry).setJobs(jobs);
+    }
+
+    @Test
+    public void testHandleEventsShouldDispatchToTheJobOfTheKey() throws IOException {
+        Path a = Paths.get("/a");
+        Path b = Paths.get("/b");
+        when(fileSystem.getPath("/a")).thenReturn(a);
+        when(fileSystem.getPath("/b")).thenReturn(b);
+        instance.setupByCommandLineArguments(new String[]{"-d", "/a", "-c", "make", "-d", "/b", "-c", "ant"});
+        WatchKey key = mock(WatchKey.class);
+        WatchEvent<Path> we = mock(WatchEvent.class);
+        when(we.kind()).thenReturn(ENTRY_MODIFY);
+        when(we.context()).thenReturn(Paths.get("x"));
+        List<WatchEvent<?>> eventList = new ArrayList<>();
+        eventList.add(we);
+        doReturn(eventList).when(key).pollEvents();
+        when(registry.get(key)).thenReturn(b);
+        doReturn(instance.getJobs().subList(1, 2)).when(registry).getJobs(key);
+
+        instance.handleEvents(key);
+
+        verify(factory).execute(eq("ant"), eq(b), any(ChangeEvent.class));
+        verify(factory, never()).execute(eq("make"), any(Path.class), any(ChangeEvent.class));
+    }
+
+    @Test
+    public void testHandleEventsShouldDispatchToEveryNestedRoot() throws IOException {
+        Path outer = Paths.get("/w");
+        Path inner = Paths.get("/w/sub");
+        when(fileSystem.getPath("/w")).thenReturn(outer);
+        when(fileSystem.getPath("/w/sub")).thenReturn(inner);
+        instance.setupByCommandLineArguments(new String[]{"-d", "/w", "-c", "make", "--exclude", "*.log",
+            "-d", "/w/sub", "-c", "ant", "--exclude", "*.tmp"});
+        WatchKey key = mock(WatchKey.class);
+        List<WatchEvent<?>> eventList = new ArrayList<>();
+        for (String name : new String[]{"A.java", "b.log", "c.tmp"}) {
+            WatchEvent<Path> we = mock(WatchEvent.class);
+            when(we.kind()).thenReturn(ENTRY_MODIFY);
+            when(we.context()).thenReturn(Paths.get(name));
+            eventList.add(we);
+        }
+        doReturn(eventList).when(key).pollEvents();
+        when(registry.get(key)).thenReturn(inner);
+        doReturn(instance.getJobs()).when(registry).getJobs(key);
+
+        instance.handleEvents(key);
+
+        ArgumentCaptor<ChangeEvent> make = ArgumentCaptor.forClass(ChangeEvent.class);
+        verify(factory, times(2)).execute(eq("make"), eq(outer), make.capture());
+        assertEquals(inner.resolve("A.java"), make.getAllValues().get(0).getPath());
+        assertEquals(inner.resolve("c.tmp"), make.getAllValues().get(1).getPath());
+        ArgumentCaptor<ChangeEvent> ant = ArgumentCaptor.forClass(ChangeEvent.class);
+        verify(factory, times(2)).execute(eq("ant"), eq(inner), ant.capture());
+        assertEquals(inner.resolve("A.java"), ant.getAllValues().get(0).getPath());
+        assertEquals(inner.resolve("b.log"), ant.getAllValues().get(1).getPath());
+    }
+
+    @Test
+    public void testHandleEventsShouldRunTheHandlerInsteadOfACommand() throws Exception {
+        Path a = Paths.get("/a");
+        Path b = Paths.get("/b");
+        when(fileSystem.getPath("/a")).thenReturn(a);
+        when(fileSystem.getPath("/b")).thenReturn(b);
+        ChangeHandler handler = mock(ChangeHandler.class);
+        doReturn(true).when(handler).handle(any(Path.class), anyListOf(ChangeEvent.class));
+        doReturn(handler).when(factory).createHandler("recorder");
+        instance.setupByCommandLineArguments(new String[]{"-d", "/a", "-c", "make", "-d", "/b", "--handler", "recorder"});
+        WatchKey key = mock(WatchKey.class);
+        WatchEvent<Path> we = mock(WatchEvent.class);
+        when(we.kind()).thenReturn(ENTRY_MODIFY);
+        when(we.context()).thenReturn(Paths.get("x"));
+        List<WatchEvent<?>> eventList = new ArrayList<>();
+        eventList.add(we);
+        doReturn(eventList).when(key).pollEvents();
+        when(registry.get(key)).thenReturn(b);
+        doReturn(instance.getJobs().subList(1, 2)).when(registry).getJobs(key);
+
+        instance.handleEvents(key);
+
+        assertEquals(2, instance.getJobs().size());
+        ArgumentCaptor<List> changes = ArgumentCaptor.forClass(List.class);
+        verify(handler).handle(eq(b), changes.capture());
+        assertEquals(1, changes.getValue().size());
+        verify(factory, never()).execute(any(String.class), any(Path.class), any(ChangeEvent.class));
+        assertEquals(1, instance.getMetrics().getCommandLaunches());
+    }
+
+    @Test
+    public void testCreateHandlerShouldFindServicesAndClasses() {
+        Factory real = new Factory();
+        assertTrue(real.createHandler("RecordingHandler") instanceof RecordingHandler);
+        assertTrue(real.createHandler(RecordingHandler.class.getName()) instanceof RecordingHandler);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateHandlerShouldRejectUnknownClasses() {
+        new Factory().createHandler("tools.NoSuchHandler");
+    }
+
+    @Test
+    public void testSplitLineShouldKeepQuotedWords() {
+        assertEquals(Arrays.asList("-d", "src", "-c", "make all", "--debounce", "1s"),
+                FileWatcher.splitLine("  -d src -c \"make all\"\t--debounce 1s "));
+    }
+
+    @Test
+    public void testSetupShouldSelectThePollingEngine() {
+        when(fileSystem.getPath(".")).thenReturn(mock(Path.class));
+
+        instance.setupByCommandLineArguments(new String[]{"--engine", "poll", "--poll-interval", "1s"});
+
+        assertTrue(instance.getEngine() instanceof PollingWatchEngine);
+        verify(registry).setEngine(instance.getEngine());
+    }
+
+    @Test
+    public void testHandleEventsShouldCancelDeletedSubtreesAndDetectMoves() {
+        Path dir = Paths.get("/w");
+        Path old = dir.resolve("old");
+        Path moved = dir.resolve("new");
+        WatchKey key = mock(WatchKey.class);
+        List<WatchEvent<?>> eventList = new ArrayList<>();
+        eventList.add(event(ENTRY_DELETE, "old"));
+        eventList.add(event(ENTRY_CREATE, "new"));
+        doReturn(eventList).when(key).pollEvents();
+        when(registry.get(key)).thenReturn(dir);
+        when(registry.getKey(old)).thenReturn(mock(WatchKey.class));
+        when(registry.cancelSubtree(old)).thenReturn(3);
+        TreeSnapshot snapshot = mock(TreeSnapshot.class);
+        when(snapshot.get(old)).thenReturn(new TreeSnapshot.Entry(0, 0, "inode", true));
+        when(snapshot.get(moved)).thenReturn(new TreeSnapshot.Entry(0, 0, "inode", true));
+        when(registry.getSnapshot()).thenReturn(snapshot);
+        when(factory.isDirectory(moved)).thenReturn(true);
+
+        instance.handleEvents(key);
+
+        verify(registry).cancelSubtree(old);
+        verify(registry).registerWatchers(moved);
+        assertEquals(3, instance.getMetrics().getCancelledKeys());
+        assertEquals(1, instance.getMetrics().getMovedDirectories());
+    }
+
+    @Test
+    public void testCleanUpShouldRegisterARecreatedRoot() {
+        Path path = mock(Path.class);
+        when(fileSystem.getPath("testDir")).thenReturn(path);
+        instance.setupByCommandLineArguments(new String[]{"testDir"});
+        WatchKey key = mock(WatchKey.class);
+        when(key.reset()).thenReturn(false);
+        when(registry.getKeys()).thenReturn(new HashSet<WatchKey>());
+        when(factory.isDirectory(path)).thenReturn(true);
+        when(registry.registerWatchers(path)).thenReturn(true);
+
+        instance.cleanUp(key);
+
+        verify(registry).registerWatchers(path);
+    }
+
+    private static WatchEvent<Path> event(WatchEvent.Kind<Path> kind, String name) {
+        WatchEvent<Path> we = mock(WatchEvent.class);
+        when(we.kind()).thenReturn(kind);
+        when(we.context()).thenReturn(Paths.get(name));
+        return we;
+    }
+
+    public static class RecordingHandler implements ChangeHandler {
+
+        @Override
+        public boolean handle(Path root, List<ChangeEvent> changes) {
+            return true;
+        }
     }
 }
@@ -0,0 +1,118 @@
+package tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class OutputPumpTest {
+
+    Factory factory;
+    Metrics metrics;
+    RingBufferOutput ring;
+
+    @Before
+    public void setUp() {
+        factory = new Factory();
+        metrics = new Metrics();
+        ring = new RingBufferOutput(10);
+    }
+
+    @Test
+    public void testDrainShouldPrefixStdoutStderrAndExitCode() throws Exception {
+        OutputPump instance = new OutputPump(factory, metrics, ring, true, 100);
+
+        instance.drain(new FakeProcess("one\r\ntwo", "oops\n"), "a.txt").finish(3);
+
+        List<String> lines = awaitLines(4);
+        assertTrue(lines.contains("a.txt: one"));
+        assertTrue(lines.contains("a.txt: two"));
+        assertTrue(lines.contains("a.txt (stderr): oops"));
+        assertEquals("a.txt: exit 3", lines.get(3));
+    }
+
+    @Test
+    public void testLongLinesShouldBeSplit() throws Exception {
+        OutputPump instance = new OutputPump(factory, metrics, ring, false, 100);
+        char[] longLine = new char[OutputPump.MAX_LINE_LENGTH + 1];
+        Arrays.fill(longLine, 'x');
+
+        instance.drain(new FakeProcess(new String(longLine), ""), "a.txt").finish(0);
+
+        List<String> lines = awaitLines(2);
+        assertEquals(OutputPump.MAX_LINE_LENGTH, lines.get(0).length());
+        assertEquals("x", lines.get(1));
+    }
+
+    @Test
+    public void testOfferShouldDropLinesIfTheQueueIsFull() {
+        OutputPump instance = new OutputPump(factory, metrics, ring, false, 2);
+
+        instance.offer("1");
+        instance.offer("2");
+        instance.offer("3");
+
+        assertEquals(2, instance.getQueuedLines());
+        assertEquals(1, metrics.getDroppedOutputLines());
+    }
+
+    @Test
+    public void testRingBufferShouldKeepTheLastLines() {
+        RingBufferOutput small = new RingBufferOutput(2);
+        small.write("1");
+        small.write("2");
+        small.write("3");
+        assertArrayEquals(new String[]{"2", "3"}, small.getLines());
+    }
+
+    private List<String> awaitLines(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && ring.getLines().length < count; i++) {
+            Thread.sleep(20);
+        }
+        return Arrays.asList(ring.getLines());
+    }
+
+    static class FakeProcess extends Process {
+
+        private final InputStream out;
+        private final InputStream err;
+
+        FakeProcess(String out, String err) {
+            this.out = new ByteArrayInputStream(out.getBytes());
+            this.err = new ByteArrayInputStream(err.getBytes());
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return out;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return err;
+        }
+
+        @Override
+        public int waitFor() {
+            return 0;
+        }
+
+        @Override
+        public int exitValue() {
+            return 0;
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package tools;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class PathFilterTest {
+
+    Path root = Paths.get("/work");
+
+    @Test
+    public void testExcludeShouldMatchNamesExtensionsAndGlobs() {
+        PathFilter instance = new PathFilter(root, Collections.<String>emptyList(),
+                Arrays.asList("target/", "*.class", "*~", "glob:.#*"));
+
+        assertTrue(instance.isExcluded(root.resolve("target")));
+        assertTrue(instance.isExcluded(root.resolve("src/A.class")));
+        assertTrue(instance.isExcluded(root.resolve("src/A.java~")));
+        assertTrue(instance.isExcluded(root.resolve("src/.#A.java")));
+        assertFalse(instance.isExcluded(root.resolve("src/A.java")));
+        assertFalse(instance.isExcluded(root.resolve("src/Aclass")));
+    }
+
+    @Test
+    public void testPathRulesShouldMatchRelativeToTheRoot() {
+        PathFilter instance = new PathFilter(root, Arrays.asList("src/**/*.java", "regex:docs/[a-z]+\\.md"),
+                Arrays.asList("**/generated/**"));
+
+        assertTrue(instance.accepts(root.resolve("src/tools/A.java")));
+        assertTrue(instance.accepts(root.resolve("docs/readme.md")));
+        assertFalse(instance.accepts(root.resolve("docs/README.md")));
+        assertFalse(instance.accepts(root.resolve("test/A.java")));
+        assertFalse(instance.accepts(root.resolve("src/generated/A.java")));
+        assertTrue(instance.isExcluded(root.resolve("generated/x")));
+    }
+
+    @Test
+    public void testGlobToRegex() {
+        assertEquals("[^/]*\\.txt", PathFilter.globToRegex("*.txt"));
+        assertEquals("(?:.*/)?a/.*", PathFilter.globToRegex("**/a/**"));
+        assertEquals("[^/]\\.(?:c|h)", PathFilter.globToRegex("?.{c,h}"));
+        assertEquals("[^ab]", PathFilter.globToRegex("[!ab]"));
+    }
+
+    @Test
+    public void testExcludingShouldMatchNamesAnywhere() {
+        PathFilter instance = PathFilter.excluding("skip");
+        assertTrue(instance.isExcluded(Paths.get("a/b/skip")));
+        assertTrue(instance.accepts(Paths.get("a/b/keep")));
+    }
+}
@@ -0,0 +1,102 @@
+package tools;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class PathTableTest {
+
+    PathTable<String> instance = new PathTable<>();
+
+    @Test
+    public void testInternShouldShareTheNames() {
+        int a = instance.intern(Paths.get("/w/src/main"));
+        int b = instance.intern(Paths.get("/w/lib/src/main"));
+
+        assertEquals(a, instance.intern(Paths.get("/w/src/main")));
+        assertEquals(a, instance.find(Paths.get("/w/src/main")));
+        assertNotEquals(a, b);
+        // "/", "w", "src", "main", "lib"
+        assertEquals(5, instance.getNameCount());
+        assertEquals(7, instance.size());
+        assertEquals("main", instance.getName(a));
+        assertEquals(instance.find(Paths.get("/w/src")), instance.getParent(a));
+        assertEquals(Paths.get("/w/lib/src/main"), instance.toPath(b));
+    }
+
+    @Test
+    public void testFindShouldMissUnknownPaths() {
+        instance.intern(Paths.get("/w/src"));
+
+        assertEquals(PathTable.NONE, instance.find(Paths.get("/w/lib")));
+        assertEquals(PathTable.NONE, instance.find(Paths.get("/w/src/main")));
+        assertEquals(PathTable.NONE, instance.find(Paths.get("w/src")));
+        assertNull(instance.get(Paths.get("/other")));
+    }
+
+    @Test
+    public void testRelativePathsShouldBeStored() {
+        int id = instance.intern(Paths.get("root/sub"));
+
+        assertEquals(id, instance.find(Paths.get("root/sub")));
+        assertEquals(Paths.get("root/sub"), instance.toPath(id));
+    }
+
+    @Test
+    public void testRemoveSubtreeShouldDropTheNodesBelow() {
+        for (String dir : new String[]{"/w/a", "/w/a/b", "/w/a/b/c", "/w/a-b", "/w/c"}) {
+            instance.put(Paths.get(dir), dir);
+        }
+        int a = instance.find(Paths.get("/w/a"));
+
+        Set<String> below = new HashSet<>();
+        for (int node : instance.subtree(a)) {
+            below.add(instance.getValue(node));
+        }
+        assertEquals(new HashSet<>(Arrays.asList("/w/a", "/w/a/b", "/w/a/b/c")), below);
+
+        instance.removeSubtree(a);
+
+        assertEquals(PathTable.NONE, instance.find(Paths.get("/w/a/b")));
+        assertEquals("/w/a-b", instance.get(Paths.get("/w/a-b")));
+        assertEquals("/w/c", instance.get(Paths.get("/w/c")));
+        assertEquals(4, instance.size());
+    }
+
+    @Test
+    public void testRemoveShouldPruneTheEmptyParents() {
+        instance.put(Paths.get("/w/a/b/c"), "c");
+        instance.put(Paths.get("/w/x"), "x");
+
+        assertFalse(instance.remove(Paths.get("/w/a/b/c"), "other"));
+        assertTrue(instance.remove(Paths.get("/w/a/b/c"), "c"));
+
+        assertEquals(PathTable.NONE, instance.find(Paths.get("/w/a")));
+        assertEquals(3, instance.size());
+        assertEquals("x", instance.get(Paths.get("/w/x")));
+    }
+
+    @Test
+    public void testRemovedIdsShouldBeReused() {
+        Path[] paths = new Path[5000];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = Paths.get("/w", "d" + (i % 50), "e" + i);
+            instance.put(paths[i], "v" + i);
+        }
+        instance.removeSubtree(instance.find(Paths.get("/w")));
+        assertEquals(0, instance.size());
+
+        for (int i = 0; i < paths.length; i++) {
+            instance.put(paths[i], "v" + i);
+        }
+        for (int i = 0; i < paths.length; i++) {
+            assertEquals("v" + i, instance.get(paths[i]));
+            assertEquals(paths[i], instance.toPath(instance.find(paths[i])));
+        }
+        assertEquals(paths.length + 52, instance.size());
+    }
+}
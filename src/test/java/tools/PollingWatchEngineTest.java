@@ -0,0 +1,122 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class PollingWatchEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Factory factory;
+    PollingWatchEngine instance;
+    Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        factory = spy(new Factory());
+        // the test drives the scans
+        doReturn(mock(Thread.class)).when(factory).createDaemonThread(any(Runnable.class), eq("poller"));
+        instance = new PollingWatchEngine(factory, 100, 800);
+        dir = folder.getRoot().toPath();
+        Files.write(dir.resolve("a.txt"), "a".getBytes());
+        Files.write(dir.resolve("b.txt"), "b".getBytes());
+    }
+
+    @Test
+    public void testScanShouldReportTheDifferencesToTheLastListing() throws IOException {
+        WatchKey key = instance.register(dir);
+        assertSame(key, instance.register(dir));
+
+        Files.write(dir.resolve("a.txt"), "changed".getBytes());
+        Files.delete(dir.resolve("b.txt"));
+        Files.write(dir.resolve("c.txt"), "c".getBytes());
+        instance.scanDue(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+
+        assertSame(key, instance.poll());
+        assertNull(instance.poll());
+        List<WatchEvent<?>> events = key.pollEvents();
+        assertEquals(3, events.size());
+        assertTrue(contains(events, ENTRY_MODIFY, "a.txt"));
+        assertTrue(contains(events, ENTRY_DELETE, "b.txt"));
+        assertTrue(contains(events, ENTRY_CREATE, "c.txt"));
+        assertTrue(key.reset());
+        assertNull(instance.poll());
+    }
+
+    @Test
+    public void testIntervalShouldGrowOnColdAndShrinkOnHotDirectories() throws IOException {
+        instance.register(dir);
+        PollingWatchEngine.PollingKey key = instance.getKey(dir);
+        long now = System.nanoTime();
+        for (int i = 1; i <= 5; i++) {
+            now += TimeUnit.SECONDS.toNanos(1);
+            instance.scanDue(now);
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(800), key.getInterval());
+
+        Files.write(dir.resolve("a.txt"), "changed".getBytes());
+        Files.setLastModifiedTime(dir.resolve("a.txt"), FileTime.fromMillis(0));
+        instance.scanDue(now + TimeUnit.SECONDS.toNanos(1));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), key.getInterval());
+    }
+
+    @Test
+    public void testDeletedDirectoryShouldInvalidateTheKey() throws IOException {
+        Path sub = Files.createDirectory(dir.resolve("sub"));
+        WatchKey key = instance.register(sub);
+        Files.delete(sub);
+
+        instance.scanDue(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+
+        assertSame(key, instance.poll());
+        assertFalse(key.reset());
+        assertEquals(0, instance.getKeyCount());
+    }
+
+    @Test
+    public void testShallowScanShouldListOnlyAChangedDirectory() throws IOException {
+        instance = new PollingWatchEngine(factory, 100, 800, true);
+        FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+        Files.setLastModifiedTime(dir, old);
+        WatchKey key = instance.register(dir);
+
+        // written in place: the directory keeps its time
+        Files.write(dir.resolve("a.txt"), "changed".getBytes());
+        Files.setLastModifiedTime(dir, old);
+        instance.scanDue(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+        assertNull(instance.poll());
+
+        Files.write(dir.resolve("c.txt"), "c".getBytes());
+        instance.scanDue(System.nanoTime() + TimeUnit.SECONDS.toNanos(2));
+
+        assertSame(key, instance.poll());
+        List<WatchEvent<?>> events = key.pollEvents();
+        assertTrue(contains(events, ENTRY_CREATE, "c.txt"));
+        // the listing is compared in full once the directory changed
+        assertTrue(contains(events, ENTRY_MODIFY, "a.txt"));
+    }
+
+    private static boolean contains(List<WatchEvent<?>> events, WatchEvent.Kind<?> kind, String name) {
+        for (WatchEvent<?> event : events) {
+            if (event.kind() == kind && event.context().toString().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,9 +1,13 @@
 package tools;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
@@ -11,10 +15,15 @@ import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 import org.junit.*;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
@@ -29,6 +38,9 @@ public class RegistryTest {
     WatchService watcher;
     HashMap<WatchKey, Path> keys;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void setUp() throws IOException {
         logger = mock(Logger.class);
@@ -102,6 +114,43 @@ public class RegistryTest {
         assertNull(keys.get(key));
     }
 
+    @Test
+    public void testGetCanonicalPathShouldBeCachedPerKey() throws IOException {
+        WatchKey key = mock(WatchKey.class);
+        Path dir = mock(Path.class);
+        File file = mock(File.class);
+        when(dir.toFile()).thenReturn(file);
+        when(file.getCanonicalPath()).thenReturn("/canonical");
+        keys.put(key, dir);
+
+        assertEquals("/canonical", instance.getCanonicalPath(key));
+        assertEquals("/canonical", instance.getCanonicalPath(key));
+        verify(file, times(1)).getCanonicalPath();
+    }
+
+    @Test
+    public void testParallelRegistrationShouldRegisterEveryDirectory() throws IOException {
+        File root = folder.newFolder("root");
+        for (String dir : new String[]{"a/b/c", "a/d", "e/f", "skip/g"}) {
+            new File(root, dir).mkdirs();
+        }
+        new File(root, "a/b/file.txt").createNewFile();
+        Map<WatchKey, Path> concurrentKeys = new ConcurrentHashMap<>();
+        try (WatchService realWatcher = FileSystems.getDefault().newWatchService()) {
+            instance = new Registry(factory, realWatcher, concurrentKeys);
+            instance.setSkipDirectories(new String[]{"skip"});
+            instance.setSnapshot(new TreeSnapshot());
+            instance.setParallelism(4);
+
+            assertTrue(instance.registerWatchers(root.toPath()));
+
+            assertEquals(7, concurrentKeys.size());
+            assertEquals(7, instance.getRegisteredDirectories());
+            assertFalse(instance.isRegistering());
+            assertNotNull(instance.getSnapshot().get(root.toPath().resolve("a/b/file.txt")));
+        }
+    }
+
     @Test
     public void testPreVisitDirectoryShouldRegisterWatcher() throws IOException {
         Path dir = mock(Path.class);
@@ -112,4 +161,74 @@ public class RegistryTest {
         assertNotNull(keys.get(key));
         assertEquals(ret, FileVisitResult.CONTINUE);
     }
+
+    @Test
+    public void testSkippedDirectoryShouldNotSkipItsSiblings() throws IOException {
+        File root = folder.newFolder("walk");
+        for (String dir : new String[]{"a", "skip/x", "m", "z"}) {
+            new File(root, dir).mkdirs();
+        }
+        try (WatchService realWatcher = FileSystems.getDefault().newWatchService()) {
+            instance = new Registry(factory, realWatcher, keys);
+            instance.setFilter(new PathFilter(root.toPath(), Collections.<String>emptyList(),
+                    Arrays.asList("skip")));
+
+            Files.walkFileTree(root.toPath(), instance);
+
+            assertEquals(4, keys.size());
+            assertFalse(keys.containsValue(root.toPath().resolve("skip/x")));
+        }
+    }
+
+    @Test
+    public void testGetJobsShouldReturnEveryContainingRoot() {
+        WatchJob outer = mock(WatchJob.class);
+        WatchJob inner = mock(WatchJob.class);
+        when(outer.getRoot()).thenReturn(Paths.get("/work"));
+        when(inner.getRoot()).thenReturn(Paths.get("/work/sub"));
+        instance.setJobs(Arrays.asList(outer, inner));
+        WatchKey key = mock(WatchKey.class);
+        keys.put(key, Paths.get("/work/sub/dir"));
+
+        assertEquals(Arrays.asList(outer, inner), instance.getJobs(key));
+        assertEquals(Arrays.asList(outer), instance.getJobs(Paths.get("/work/other")));
+        assertTrue(instance.getJobs(Paths.get("/elsewhere")).isEmpty());
+    }
+
+    @Test
+    public void testSkipDirectoryShouldNeedEveryOwnerToExcludeIt() {
+        WatchJob outer = mock(WatchJob.class);
+        WatchJob inner = mock(WatchJob.class);
+        when(outer.getRoot()).thenReturn(Paths.get("/work"));
+        when(inner.getRoot()).thenReturn(Paths.get("/work/sub"));
+        when(outer.isExcluded(any(Path.class))).thenReturn(true);
+        when(inner.isExcluded(Paths.get("/work/sub/target"))).thenReturn(true);
+        instance.setJobs(Arrays.asList(outer, inner));
+
+        assertFalse(instance.skipDirectory(Paths.get("/work/sub/src")));
+        assertTrue(instance.skipDirectory(Paths.get("/work/sub/target")));
+        assertTrue(instance.skipDirectory(Paths.get("/work/other")));
+    }
+
+    @Test
+    public void testCancelSubtreeShouldRemoveOnlyTheKeysBelowTheDirectory() throws IOException {
+        WatchEngine engine = mock(WatchEngine.class);
+        instance.setEngine(engine);
+        Map<Path, WatchKey> registered = new HashMap<>();
+        for (String dir : new String[]{"/w/a", "/w/a/b", "/w/a/b/c", "/w/a-b", "/w/ab", "/w/c"}) {
+            Path path = Paths.get(dir);
+            WatchKey key = mock(WatchKey.class);
+            when(engine.register(path)).thenReturn(key);
+            instance.registerDirectory(path, null);
+            registered.put(path, key);
+        }
+
+        assertEquals(3, instance.cancelSubtree(Paths.get("/w/a")));
+
+        verify(registered.get(Paths.get("/w/a/b/c"))).cancel();
+        verify(registered.get(Paths.get("/w/a-b")), never()).cancel();
+        assertEquals(3, keys.size());
+        assertNull(instance.getKey(Paths.get("/w/a/b")));
+        assertEquals(registered.get(Paths.get("/w/ab")), instance.getKey(Paths.get("/w/ab")));
+    }
 }
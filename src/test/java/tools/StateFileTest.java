@@ -0,0 +1,99 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class StateFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Factory factory = new Factory();
+    Path root;
+    Path state;
+
+    @Before
+    public void setUp() throws IOException {
+        root = folder.newFolder("root").toPath();
+        state = folder.getRoot().toPath().resolve("state");
+        Files.write(root.resolve("kept.txt"), "a".getBytes());
+        Files.write(root.resolve("changed.txt"), "a".getBytes());
+        Files.write(root.resolve("deleted.txt"), "a".getBytes());
+        Files.createDirectory(root.resolve("sub"));
+    }
+
+    @Test
+    public void testLoadShouldReturnNullWithoutAFile() {
+        assertNull(new StateFile(factory, state, root.toString(), new TreeSnapshot()).load());
+    }
+
+    @Test
+    public void testLoadShouldRejectTheStateOfAnotherRoot() {
+        new StateFile(factory, state, root.toString(), record()).save();
+        assertNull(new StateFile(factory, state, root.resolve("sub").toString(), new TreeSnapshot()).load());
+    }
+
+    @Test
+    public void testSavedStateShouldReportTheOfflineChanges() throws IOException {
+        TreeSnapshot before = record();
+        new StateFile(factory, state, root.toString(), before).save();
+        assertFalse(before.isModified());
+
+        Files.write(root.resolve("changed.txt"), "changed".getBytes());
+        Files.delete(root.resolve("deleted.txt"));
+        Files.write(root.resolve("sub/new.txt"), "a".getBytes());
+
+        TreeSnapshot loaded = new StateFile(factory, state, root.toString(), new TreeSnapshot()).load();
+        assertNotNull(loaded);
+        assertEquals(2, loaded.getDirectoryCount());
+        List<ChangeEvent> changes = record().diff(loaded);
+
+        Map<Path, ChangeEvent> byPath = new HashMap<>();
+        for (ChangeEvent change : changes) {
+            byPath.put(change.getPath(), change);
+        }
+        assertEquals(3, changes.size());
+        assertEquals(ENTRY_MODIFY, byPath.get(root.resolve("changed.txt")).getKind());
+        assertEquals(ENTRY_DELETE, byPath.get(root.resolve("deleted.txt")).getKind());
+        assertEquals(ENTRY_CREATE, byPath.get(root.resolve("sub/new.txt")).getKind());
+    }
+
+    private TreeSnapshot record() {
+        try {
+            TreeSnapshot snapshot = new TreeSnapshot();
+            snapshot.recordDirectory(root, null);
+            for (Path child : Files.newDirectoryStream(root)) {
+                if (Files.isDirectory(child)) {
+                    snapshot.recordDirectory(child, attributes(child));
+                    for (Path file : Files.newDirectoryStream(child)) {
+                        snapshot.recordFile(file, attributes(file));
+                    }
+                } else {
+                    // a fixed mtime, so only the size tells the versions apart
+                    Files.setLastModifiedTime(child, FileTime.fromMillis(Files.size(child)));
+                    snapshot.recordFile(child, attributes(child));
+                }
+            }
+            return snapshot;
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static BasicFileAttributes attributes(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class, NOFOLLOW_LINKS);
+    }
+}
@@ -0,0 +1,105 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class TieredWatchEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Factory factory;
+    Metrics metrics;
+    WatchService watcher;
+    PollingWatchEngine polling;
+    TieredWatchEngine instance;
+    Path root;
+    Path deep;
+
+    @Before
+    public void setUp() throws IOException {
+        factory = spy(new Factory());
+        // the test drives the scans and the forwarding
+        doReturn(mock(Thread.class)).when(factory).createDaemonThread(any(Runnable.class), anyString());
+        metrics = new Metrics();
+        watcher = FileSystems.getDefault().newWatchService();
+        polling = new PollingWatchEngine(factory, 100, 800, true);
+        instance = new TieredWatchEngine(factory, metrics, new NativeWatchEngine(watcher), polling, 1, 1, 1000);
+        root = folder.getRoot().toPath();
+        deep = Files.createDirectories(root.resolve("a").resolve("b"));
+        instance.addRoot(root);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        watcher.close();
+    }
+
+    @Test
+    public void testRegisterShouldPollBelowTheLazyDepth() throws IOException {
+        TieredWatchEngine.TieredKey shallow = (TieredWatchEngine.TieredKey) instance.register(root.resolve("a"));
+        TieredWatchEngine.TieredKey lazy = (TieredWatchEngine.TieredKey) instance.register(deep);
+
+        assertTrue(shallow.isNative());
+        assertTrue(shallow.isEager());
+        assertFalse(lazy.isNative());
+        assertNotNull(polling.getKey(deep));
+        assertSame(lazy, instance.register(deep));
+    }
+
+    @Test
+    public void testAChangedPolledDirectoryShouldBePromotedAndDemotedWhenCold() throws IOException {
+        TieredWatchEngine.TieredKey key = (TieredWatchEngine.TieredKey) instance.register(deep);
+
+        Files.write(deep.resolve("x.txt"), "x".getBytes());
+        polling.scanDue(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+        instance.onSignal(polling.poll());
+
+        assertSame(key, instance.poll());
+        assertTrue(key.isNative());
+        assertNull(polling.getKey(deep));
+        List<WatchEvent<?>> events = key.pollEvents();
+        assertEquals(1, events.size());
+        assertEquals(ENTRY_CREATE, events.get(0).kind());
+        assertTrue(key.reset());
+        assertEquals(1, metrics.getPromotedKeys());
+
+        instance.demoteCold(System.nanoTime() + TimeUnit.SECONDS.toNanos(2));
+
+        assertFalse(key.isNative());
+        assertNotNull(polling.getKey(deep));
+        assertEquals(0, instance.getPromotedCount());
+        assertEquals(1, metrics.getDemotedKeys());
+    }
+
+    @Test
+    public void testTheBudgetShouldDemoteTheLeastActiveDirectory() throws IOException {
+        Path other = Files.createDirectories(root.resolve("a").resolve("c"));
+        TieredWatchEngine.TieredKey first = (TieredWatchEngine.TieredKey) instance.register(deep);
+        TieredWatchEngine.TieredKey second = (TieredWatchEngine.TieredKey) instance.register(other);
+
+        Files.write(deep.resolve("x.txt"), "x".getBytes());
+        polling.scanDue(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+        instance.onSignal(polling.poll());
+        Files.write(other.resolve("y.txt"), "y".getBytes());
+        polling.scanDue(System.nanoTime() + TimeUnit.SECONDS.toNanos(2));
+        instance.onSignal(polling.poll());
+
+        assertFalse(first.isNative());
+        assertTrue(second.isNative());
+        assertEquals(1, instance.getPromotedCount());
+    }
+}
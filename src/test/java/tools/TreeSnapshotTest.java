@@ -0,0 +1,99 @@
+package tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class TreeSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // unit to be tested
+    TreeSnapshot instance;
+    Path root;
+    Path file;
+    Path sub;
+
+    @Before
+    public void setUp() throws IOException {
+        instance = new TreeSnapshot();
+        root = folder.getRoot().toPath();
+        file = Files.write(root.resolve("a.txt"), "a".getBytes());
+        sub = Files.createDirectory(root.resolve("sub"));
+        Files.write(sub.resolve("b.txt"), "b".getBytes());
+
+        instance.recordDirectory(root, null);
+        instance.recordFile(file, attributes(file));
+        instance.recordDirectory(sub, attributes(sub));
+        instance.recordFile(sub.resolve("b.txt"), attributes(sub.resolve("b.txt")));
+    }
+
+    @Test
+    public void testRescanShouldReportNothingIfUnchanged() throws IOException {
+        assertTrue(instance.rescan(root, null).isEmpty());
+    }
+
+    @Test
+    public void testRescanShouldReportTheDifferences() throws IOException {
+        Files.write(file, "changed".getBytes());
+        Path created = Files.write(root.resolve("c.txt"), "c".getBytes());
+        Files.delete(sub.resolve("b.txt"));
+        Files.delete(sub);
+
+        List<ChangeEvent> changes = instance.rescan(root, "/canonical");
+
+        assertEquals(3, changes.size());
+        assertContains(changes, ENTRY_MODIFY, file);
+        assertContains(changes, ENTRY_CREATE, created);
+        assertContains(changes, ENTRY_DELETE, sub);
+        assertEquals("/canonical", changes.get(0).getDirectory());
+        assertFalse(instance.containsDirectory(sub));
+        assertTrue(instance.rescan(root, null).isEmpty());
+    }
+
+    @Test
+    public void testRescanShouldDetectAModificationWithTheSameSize() throws IOException {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+
+        List<ChangeEvent> changes = instance.rescan(root, null);
+
+        assertEquals(1, changes.size());
+        assertContains(changes, ENTRY_MODIFY, file);
+    }
+
+    @Test
+    public void testUpdateShouldKeepTheSnapshotInLine() throws IOException {
+        Files.write(file, "changed".getBytes());
+        instance.update(ENTRY_MODIFY, file);
+        Files.delete(sub.resolve("b.txt"));
+        Files.delete(sub);
+        instance.update(ENTRY_DELETE, sub);
+
+        assertTrue(instance.rescan(root, null).isEmpty());
+        assertEquals(1, instance.getDirectoryCount());
+    }
+
+    private static BasicFileAttributes attributes(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class, NOFOLLOW_LINKS);
+    }
+
+    private static void assertContains(List<ChangeEvent> changes, Object kind, Path path) {
+        for (ChangeEvent change : changes) {
+            if (change.getKind() == kind && change.getPath().equals(path)) {
+                return;
+            }
+        }
+        fail("Missing " + kind + " of " + path + " in " + changes);
+    }
+}
@@ -0,0 +1,213 @@
+package tools;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.*;
+import static org.junit.Assert.*;
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class WorkerHandlerTest {
+
+    Factory factory;
+    Metrics metrics;
+    RingBufferOutput ring;
+    Path root;
+    List<ChangeEvent> changes;
+
+    @Before
+    public void setUp() {
+        factory = spy(new Factory());
+        doNothing().when(factory).addShutdownHook(any(Runnable.class));
+        metrics = new Metrics();
+        ring = new RingBufferOutput(10);
+        factory.setOutputPump(new OutputPump(factory, metrics, ring, false, 100));
+        root = Paths.get("root");
+        changes = Collections.singletonList(new ChangeEvent(ENTRY_MODIFY, root.resolve("A.java")));
+    }
+
+    @Test
+    public void testHandleShouldSendTheChangesAndWaitForTheAnswer() throws Exception {
+        WorkerProcess worker = new WorkerProcess(Mode.ANSWER);
+        doReturn(worker).when(factory).startWorker("worker", root);
+        WorkerHandler instance = new WorkerHandler(factory, metrics, "worker", 5000);
+
+        assertTrue(instance.handle(root, changes));
+        assertTrue(instance.handle(root, changes));
+
+        verify(factory, times(1)).startWorker("worker", root);
+        assertEquals(2, worker.requests.size());
+        assertTrue(worker.requests.get(1).startsWith("{\"id\":2,"));
+        assertEquals("log of 1", awaitLine());
+    }
+
+    @Test
+    public void testHandleShouldReportAFailedAnswer() throws Exception {
+        doReturn(new WorkerProcess(Mode.FAIL)).when(factory).startWorker("worker", root);
+        WorkerHandler instance = new WorkerHandler(factory, metrics, "worker", 5000);
+
+        assertFalse(instance.handle(root, changes));
+    }
+
+    @Test
+    public void testHandleShouldRestartAnExitedWorker() throws Exception {
+        WorkerProcess exiting = new WorkerProcess(Mode.EXIT);
+        WorkerProcess answering = new WorkerProcess(Mode.ANSWER);
+        doReturn(exiting).doReturn(answering).when(factory).startWorker("worker", root);
+        WorkerHandler instance = new WorkerHandler(factory, metrics, "worker", 5000);
+
+        assertTrue(instance.handle(root, changes));
+
+        assertEquals(1, metrics.getWorkerRestarts());
+        assertTrue(exiting.destroyed);
+        assertEquals(1, answering.requests.size());
+    }
+
+    @Test
+    public void testHandleShouldKillASilentWorker() throws Exception {
+        WorkerProcess silent = new WorkerProcess(Mode.SILENT);
+        doReturn(silent).when(factory).startWorker("worker", root);
+        WorkerHandler instance = new WorkerHandler(factory, metrics, "worker", 100);
+
+        assertFalse(instance.handle(root, changes));
+
+        assertTrue(silent.destroyed);
+    }
+
+    @Test
+    public void testShutdownHookShouldDestroyTheWorker() throws Exception {
+        WorkerProcess worker = new WorkerProcess(Mode.ANSWER);
+        doReturn(worker).when(factory).startWorker("worker", root);
+        WorkerHandler instance = new WorkerHandler(factory, metrics, "worker", 5000);
+        ArgumentCaptor<Runnable> hook = ArgumentCaptor.forClass(Runnable.class);
+        verify(factory).addShutdownHook(hook.capture());
+        assertTrue(instance.handle(root, changes));
+
+        hook.getValue().run();
+
+        assertTrue(worker.destroyed);
+    }
+
+    @Test
+    public void testToJsonShouldEscapeThePaths() {
+        List<ChangeEvent> batch = Arrays.asList(
+                new ChangeEvent(ENTRY_CREATE, Paths.get("a\"b")),
+                new ChangeEvent(ENTRY_MODIFY, Paths.get("c\\d")));
+
+        assertEquals("{\"id\":3,\"root\":\"root\",\"changes\":["
+                + "{\"kind\":\"ENTRY_CREATE\",\"path\":\"a\\\"b\"},"
+                + "{\"kind\":\"ENTRY_MODIFY\",\"path\":\"c\\\\d\"}]}",
+                WorkerHandler.toJson(3, root, batch));
+    }
+
+    private String awaitLine() throws InterruptedException {
+        for (int i = 0; i < 100 && ring.getLines().length == 0; i++) {
+            Thread.sleep(20);
+        }
+        return ring.getLines()[0];
+    }
+
+    enum Mode {
+        ANSWER, FAIL, EXIT, SILENT
+    }
+
+    /**
+     * A worker on pipes: reads the requests and answers them on a thread.
+     */
+    static class WorkerProcess extends Process implements Runnable {
+
+        private static final Pattern ID = Pattern.compile("^\\{\"id\":(\\d+),");
+        final List<String> requests = new CopyOnWriteArrayList<>();
+        private final Mode mode;
+        private final PipedOutputStream stdin = new PipedOutputStream();
+        private final PipedInputStream request = new PipedInputStream();
+        private final PipedInputStream stdout = new PipedInputStream();
+        private final PrintStream answer;
+        volatile boolean destroyed;
+
+        WorkerProcess(Mode mode) throws IOException {
+            this.mode = mode;
+            request.connect(stdin);
+            answer = new PrintStream(new PipedOutputStream(stdout), true, "UTF-8");
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(request, "UTF-8"))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    requests.add(line);
+                    Matcher m = ID.matcher(line);
+                    assertTrue(m.find());
+                    switch (mode) {
+                        case ANSWER:
+                            answer.println("log of " + m.group(1));
+                            answer.println("{\"id\":" + m.group(1) + ",\"ok\":true}");
+                            break;
+                        case FAIL:
+                            answer.println("{\"id\":" + m.group(1) + ", \"ok\" : false}");
+                            break;
+                        case EXIT:
+                            answer.close();
+                            return;
+                        default:
+                    }
+                }
+            } catch (IOException ex) {
+                // destroyed
+            }
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return stdin;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return stdout;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public int waitFor() {
+            return 0;
+        }
+
+        @Override
+        public int exitValue() {
+            return 0;
+        }
+
+        @Override
+        public void destroy() {
+            destroyed = true;
+            answer.close();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package tools.jmx;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class JmxMonitorRegistryTest {
+
+    @Test
+    public void testRateShouldAverageOverTheWindowAndNotChangeOnRead() {
+        JmxMonitorRegistry.Rate instance = new JmxMonitorRegistry.Rate();
+        long nanos = System.nanoTime();
+        long tick = TimeUnit.SECONDS.toNanos(JmxMonitorRegistry.TICK_SECONDS);
+        long count = 0;
+        // 10 events per second for ten minutes
+        for (int i = 0; i < 120; i++) {
+            count += 10 * JmxMonitorRegistry.TICK_SECONDS;
+            nanos += tick;
+            instance.update(count, nanos);
+        }
+        assertEquals(10, instance.get(), 0.1);
+        assertEquals(instance.get(), instance.get(), 0);
+
+        // a quiet tick lowers the rate by its weight only
+        instance.update(count, nanos + tick);
+        double alpha = 1 - Math.exp(-(double) JmxMonitorRegistry.TICK_SECONDS / JmxMonitorRegistry.WINDOW_SECONDS);
+        assertEquals(10 * (1 - alpha), instance.get(), 0.1);
+    }
+}
@@ -0,0 +1,53 @@
+package tools.metrics;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsShouldBeAtMostAnEighthWide() {
+        for (long value : new long[]{0, 7, 8, 15, 1000, 123456789L, Long.MAX_VALUE}) {
+            long upper = LatencyHistogram.upperBound(LatencyHistogram.bucket(value));
+            assertTrue(value + " <= " + upper, value <= upper);
+            assertTrue(value + " ~ " + upper, upper - value <= Math.max(value / 8, 1));
+        }
+    }
+
+    @Test
+    public void testPercentilesShouldFollowTheRecordedValues() {
+        LatencyHistogram instance = new LatencyHistogram();
+        assertEquals(0, instance.getPercentile(99));
+        for (int i = 1; i <= 100; i++) {
+            instance.record(i * 1000000L);
+        }
+
+        assertEquals(100, instance.getCount());
+        assertEquals(50, instance.getPercentileMillis(50), 50 / 8.0);
+        assertEquals(99, instance.getPercentileMillis(99), 99 / 8.0);
+        assertEquals(100, instance.getPercentileMillis(100), 100 / 8.0);
+    }
+
+    @Test
+    public void testStripedCounterShouldSumAllThreads() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4000, counter.sum());
+        assertEquals(1, StripedCounter.stripes(0));
+        assertEquals(64, StripedCounter.stripes(1000));
+    }
+}